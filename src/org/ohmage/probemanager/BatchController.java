@@ -0,0 +1,170 @@
+
+package org.ohmage.probemanager;
+
+/**
+ * Chooses the batch size and flush interval of a {@link ProbeWriter} from the
+ * latency of its calls to ohmage. Each call is compared with the target
+ * latency using additive increase, multiplicative decrease: while calls are
+ * faster than the target the batch grows by one point and the flush interval
+ * shrinks by a step, and when a call is slower the batch is halved and the
+ * interval doubled. Fast devices end up sending large batches often, and slow
+ * devices small batches less often, each within the configured bounds.
+ */
+public class BatchController {
+
+    public static final int DEFAULT_MIN_BATCH_SIZE = 1;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    public static final long DEFAULT_MIN_FLUSH_INTERVAL = 50;
+
+    public static final long DEFAULT_MAX_FLUSH_INTERVAL = 2000;
+
+    /**
+     * Default target for a single call, half a frame so writes from the ui
+     * thread do not cause jank
+     */
+    public static final long DEFAULT_TARGET_LATENCY = 8;
+
+    /**
+     * Weight of each new call in the average latency
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final int mMinBatchSize;
+
+    private final int mMaxBatchSize;
+
+    private final long mMinFlushInterval;
+
+    private final long mMaxFlushInterval;
+
+    private final long mTargetLatencyNanos;
+
+    /**
+     * Amount the flush interval shrinks by after each fast call
+     */
+    private final long mFlushIntervalStep;
+
+    private int mBatchSize;
+
+    private long mFlushInterval;
+
+    private double mAverageLatencyNanos;
+
+    private long mLastLatencyNanos;
+
+    private int mIncreases;
+
+    private int mDecreases;
+
+    public BatchController() {
+        this(DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MIN_FLUSH_INTERVAL,
+                DEFAULT_MAX_FLUSH_INTERVAL, DEFAULT_TARGET_LATENCY);
+    }
+
+    /**
+     * @param minBatchSize smallest number of points sent in one call
+     * @param maxBatchSize largest number of points sent in one call
+     * @param minFlushInterval shortest time in milliseconds points wait to be
+     *            batched
+     * @param maxFlushInterval longest time in milliseconds points wait to be
+     *            batched
+     * @param targetLatency the time in milliseconds a single call should take
+     */
+    public BatchController(int minBatchSize, int maxBatchSize, long minFlushInterval,
+            long maxFlushInterval, long targetLatency) {
+        if (minBatchSize <= 0 || maxBatchSize < minBatchSize)
+            throw new IllegalArgumentException("invalid batch size bounds");
+        if (minFlushInterval < 0 || maxFlushInterval < minFlushInterval)
+            throw new IllegalArgumentException("invalid flush interval bounds");
+        if (targetLatency <= 0)
+            throw new IllegalArgumentException("targetLatency must be positive");
+
+        mMinBatchSize = minBatchSize;
+        mMaxBatchSize = maxBatchSize;
+        mMinFlushInterval = minFlushInterval;
+        mMaxFlushInterval = maxFlushInterval;
+        mTargetLatencyNanos = targetLatency * 1000000L;
+        mFlushIntervalStep = Math.max(1, (maxFlushInterval - minFlushInterval) / 32);
+        mBatchSize = minBatchSize;
+        mFlushInterval = minFlushInterval;
+    }
+
+    /**
+     * Records the latency of a call to ohmage and adjusts the batch size and
+     * flush interval
+     *
+     * @param points the number of points sent by the call
+     * @param latencyNanos how long the call took
+     */
+    public synchronized void onTransaction(int points, long latencyNanos) {
+        mLastLatencyNanos = latencyNanos;
+        if (mAverageLatencyNanos == 0)
+            mAverageLatencyNanos = latencyNanos;
+        else
+            mAverageLatencyNanos += LATENCY_SMOOTHING * (latencyNanos - mAverageLatencyNanos);
+
+        if (latencyNanos > mTargetLatencyNanos) {
+            mBatchSize = Math.max(mMinBatchSize, mBatchSize / 2);
+            mFlushInterval = Math.min(mMaxFlushInterval, Math.max(1, mFlushInterval * 2));
+            mDecreases++;
+        } else if (points >= mBatchSize) {
+            // Only grow when the batch was full, a small batch says nothing
+            // about how a larger one would do
+            mBatchSize = Math.min(mMaxBatchSize, mBatchSize + 1);
+            mFlushInterval = Math.max(mMinFlushInterval, mFlushInterval - mFlushIntervalStep);
+            mIncreases++;
+        }
+    }
+
+    /**
+     * @return the number of points to send in the next call
+     */
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * @return the time in milliseconds to wait for a batch to fill before
+     *         sending it anyway
+     */
+    public synchronized long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    /**
+     * @return the target latency of a single call in milliseconds
+     */
+    public long getTargetLatency() {
+        return mTargetLatencyNanos / 1000000L;
+    }
+
+    /**
+     * @return the smoothed latency of calls in nanoseconds
+     */
+    public synchronized long getAverageLatencyNanos() {
+        return (long) mAverageLatencyNanos;
+    }
+
+    /**
+     * @return the latency of the last call in nanoseconds
+     */
+    public synchronized long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * @return the number of times the batch size was increased
+     */
+    public synchronized int getIncreases() {
+        return mIncreases;
+    }
+
+    /**
+     * @return the number of times the batch size was decreased
+     */
+    public synchronized int getDecreases() {
+        return mDecreases;
+    }
+}
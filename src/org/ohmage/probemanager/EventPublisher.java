@@ -0,0 +1,119 @@
+
+package org.ohmage.probemanager;
+
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends every published item to all of its subscribers. Items are held for a
+ * subscriber until it requests them; if it falls more than a few items behind
+ * the oldest are dropped, since only recent state is interesting.
+ */
+class EventPublisher<T> implements ProbeFlow.Publisher<T> {
+
+    /**
+     * Number of items held for a subscriber which has not requested them
+     */
+    private static final int MAX_QUEUED = 16;
+
+    private final CopyOnWriteArrayList<EventSubscription> mSubscriptions = new CopyOnWriteArrayList<EventSubscription>();
+
+    @Override
+    public void subscribe(ProbeFlow.Subscriber<? super T> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+
+        EventSubscription subscription = new EventSubscription(subscriber);
+        mSubscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Sends the item to all subscribers
+     *
+     * @param item
+     */
+    void publish(T item) {
+        for (EventSubscription subscription : mSubscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    private class EventSubscription implements ProbeFlow.Subscription {
+
+        private final ProbeFlow.Subscriber<? super T> mSubscriber;
+
+        private final LinkedList<T> mQueue = new LinkedList<T>();
+
+        private long mDemand;
+
+        private boolean mDraining;
+
+        private boolean mCancelled;
+
+        EventSubscription(ProbeFlow.Subscriber<? super T> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("request must be positive"));
+                return;
+            }
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mDemand += n;
+                if (mDemand < 0)
+                    mDemand = Long.MAX_VALUE;
+            }
+            drain();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            mCancelled = true;
+            mQueue.clear();
+            mSubscriptions.remove(this);
+        }
+
+        void offer(T item) {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mQueue.add(item);
+                if (mQueue.size() > MAX_QUEUED)
+                    mQueue.removeFirst();
+            }
+            drain();
+        }
+
+        /**
+         * Delivers queued items while there is demand. Only one thread
+         * delivers at a time, and a subscriber which requests more from
+         * onNext is served by the loop which is already running.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (mDraining)
+                    return;
+                mDraining = true;
+            }
+            while (true) {
+                T item;
+                synchronized (this) {
+                    if (mCancelled || mDemand == 0 || mQueue.isEmpty()) {
+                        mDraining = false;
+                        return;
+                    }
+                    item = mQueue.removeFirst();
+                    if (mDemand != Long.MAX_VALUE)
+                        mDemand--;
+                }
+                mSubscriber.onNext(item);
+            }
+        }
+    }
+}
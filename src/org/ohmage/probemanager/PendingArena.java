@@ -0,0 +1,309 @@
+
+package org.ohmage.probemanager;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds pending points as UTF-8 records in a direct {@link ByteBuffer}, each
+ * identified by a slot which indexes its offset. Points are only decoded back
+ * into {@link PendingPoint}s when they are read, so a large backlog costs its
+ * encoded size outside the java heap instead of a graph of strings and
+ * builders which the garbage collector has to walk.
+ * <p>
+ * Records are appended at the tail and can be removed in any order. The space
+ * of removed records is reclaimed by sliding the remaining records down when
+ * the tail reaches the end of the buffer; slots stay the same when records
+ * move.
+ * <p>
+ * Each record is its total length, the type, observer version, stream version,
+ * upload priority and time, followed by the observer id, stream id, metadata,
+ * data and id as a length (-1 for null) and UTF-8 bytes.
+ * <p>
+ * This class is not thread safe.
+ */
+class PendingArena {
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * Bytes in a record before its strings
+     */
+    private static final int FIXED_LENGTH = 4 + 1 + 4 + 4 + 4 + 8;
+
+    private final int mByteCapacity;
+
+    private ByteBuffer mBuffer;
+
+    /**
+     * Offset of the record in each slot, or -1 if the slot is free
+     */
+    private final int[] mOffsets;
+
+    /**
+     * Stack of free slots
+     */
+    private final int[] mFreeSlots;
+
+    private int mFreeCount;
+
+    /**
+     * Offset where the next record will be written
+     */
+    private int mTail;
+
+    private long mBytesUsed;
+
+    private final byte[] mCopyBuffer = new byte[4096];
+
+    /**
+     * @param byteCapacity size of the buffer in bytes, allocated the first time
+     *            a point is added
+     * @param maxPoints number of points which can be held
+     */
+    PendingArena(int byteCapacity, int maxPoints) {
+        if (byteCapacity <= FIXED_LENGTH)
+            throw new IllegalArgumentException("byteCapacity too small");
+        if (maxPoints <= 0)
+            throw new IllegalArgumentException("maxPoints must be positive");
+        mByteCapacity = byteCapacity;
+        mOffsets = new int[maxPoints];
+        mFreeSlots = new int[maxPoints];
+        clear();
+    }
+
+    int size() {
+        return mOffsets.length - mFreeCount;
+    }
+
+    boolean isEmpty() {
+        return mFreeCount == mOffsets.length;
+    }
+
+    int getMaxPoints() {
+        return mOffsets.length;
+    }
+
+    int getByteCapacity() {
+        return mByteCapacity;
+    }
+
+    /**
+     * @return the bytes taken by the records currently held
+     */
+    long getBytesUsed() {
+        return mBytesUsed;
+    }
+
+    /**
+     * @param point
+     * @return the number of bytes the point takes as a record
+     */
+    static long encodedLength(PendingPoint point) {
+        return (long) FIXED_LENGTH + encodedLength(point.getObserverId())
+                + encodedLength(point.getStreamId()) + encodedLength(point.getMetadata())
+                + encodedLength(point.getData()) + encodedLength(point.getId());
+    }
+
+    /**
+     * @param length
+     * @return true if a record of the given length can be added without
+     *         removing any others
+     */
+    boolean hasRoomFor(long length) {
+        return mFreeCount > 0 && mByteCapacity - mBytesUsed >= length;
+    }
+
+    /**
+     * Adds the point
+     *
+     * @param point
+     * @return the slot of the point, or -1 if there is no room for it
+     */
+    int add(PendingPoint point) {
+        long length = encodedLength(point);
+        if (!hasRoomFor(length))
+            return -1;
+
+        if (mBuffer == null)
+            mBuffer = ByteBuffer.allocateDirect(mByteCapacity);
+        if (mByteCapacity - mTail < length)
+            compact();
+
+        int offset = mTail;
+        ByteBuffer out = mBuffer.duplicate();
+        out.position(offset);
+        out.putInt((int) length);
+        out.put((byte) point.getType());
+        out.putInt(point.getObserverVersion());
+        out.putInt(point.getStreamVersion());
+        out.putInt(point.getUploadPriority());
+        out.putLong(point.getTime());
+        put(out, point.getObserverId());
+        put(out, point.getStreamId());
+        put(out, point.getMetadata());
+        put(out, point.getData());
+        put(out, point.getId());
+
+        int slot = mFreeSlots[--mFreeCount];
+        mOffsets[slot] = offset;
+        mTail = offset + (int) length;
+        mBytesUsed += length;
+        return slot;
+    }
+
+    /**
+     * Decodes the point in the given slot. Different threads may read
+     * different slots at the same time as long as nothing is added or
+     * removed.
+     *
+     * @param slot
+     * @return
+     */
+    PendingPoint get(int slot) {
+        ByteBuffer in = mBuffer.duplicate();
+        in.position(offset(slot) + 4);
+        int type = in.get();
+        int observerVersion = in.getInt();
+        int streamVersion = in.getInt();
+        int uploadPriority = in.getInt();
+        long time = in.getLong();
+        String observerId = getString(in);
+        String streamId = getString(in);
+        String metadata = getString(in);
+        String data = getString(in);
+        String id = getString(in);
+        return new PendingPoint(type, observerId, observerVersion, streamId, streamVersion,
+                uploadPriority, metadata, data, id, time);
+    }
+
+    /**
+     * @param slot
+     * @return the length of the record in the slot
+     */
+    int length(int slot) {
+        return mBuffer.getInt(offset(slot));
+    }
+
+    /**
+     * Removes the point in the given slot
+     *
+     * @param slot
+     */
+    void remove(int slot) {
+        mBytesUsed -= length(slot);
+        mOffsets[slot] = -1;
+        mFreeSlots[mFreeCount++] = slot;
+        if (isEmpty())
+            mTail = 0;
+    }
+
+    void clear() {
+        for (int i = 0; i < mOffsets.length; i++) {
+            mOffsets[i] = -1;
+            // Hand out low slots first
+            mFreeSlots[i] = mOffsets.length - 1 - i;
+        }
+        mFreeCount = mOffsets.length;
+        mTail = 0;
+        mBytesUsed = 0;
+    }
+
+    private int offset(int slot) {
+        int offset = mOffsets[slot];
+        if (offset < 0)
+            throw new IllegalArgumentException("slot " + slot + " is empty");
+        return offset;
+    }
+
+    /**
+     * Slides all records down to the start of the buffer, keeping their
+     * order, so the free space is after the tail
+     */
+    private void compact() {
+        int count = size();
+        long[] records = new long[count];
+        int n = 0;
+        for (int slot = 0; slot < mOffsets.length; slot++) {
+            if (mOffsets[slot] >= 0)
+                records[n++] = ((long) mOffsets[slot] << 32) | slot;
+        }
+        Arrays.sort(records);
+
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = (int) (records[i] >>> 32);
+            int slot = (int) records[i];
+            int length = mBuffer.getInt(offset);
+            if (offset != position) {
+                // Records only move down so copying in order never overwrites
+                // bytes which have not been copied yet
+                for (int done = 0; done < length; done += mCopyBuffer.length) {
+                    int chunk = Math.min(mCopyBuffer.length, length - done);
+                    ByteBuffer from = mBuffer.duplicate();
+                    from.position(offset + done);
+                    from.get(mCopyBuffer, 0, chunk);
+                    ByteBuffer to = mBuffer.duplicate();
+                    to.position(position + done);
+                    to.put(mCopyBuffer, 0, chunk);
+                }
+                mOffsets[slot] = position;
+            }
+            position += length;
+        }
+        mTail = position;
+    }
+
+    /**
+     * @return the number of UTF-8 bytes the string takes as a record field
+     */
+    private static long encodedLength(String value) {
+        if (value == null)
+            return 4;
+        long length = 4;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void put(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = value.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        try {
+            return new String(bytes, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+
+package org.ohmage.probemanager;
+
+/**
+ * A probe or response which has not been sent to ohmage yet, either because
+ * the {@link ProbeWriter} is holding it until it connects or because it was
+ * exported to a {@link ProbeFile}. This class has no Android dependencies so
+ * backlogs can be handled on a plain JVM.
+ */
+public final class PendingPoint {
+
+    public static final int TYPE_PROBE = 0;
+
+    public static final int TYPE_RESPONSE = 1;
+
+    private final int mType;
+
+    private final String mObserverId;
+
+    private final int mObserverVersion;
+
+    private final String mStreamId;
+
+    private final int mStreamVersion;
+
+    private final int mUploadPriority;
+
+    private final String mMetadata;
+
+    private final String mData;
+
+    private final String mId;
+
+    private final long mTime;
+
+    PendingPoint(int type, String observerId, int observerVersion, String streamId,
+            int streamVersion, int uploadPriority, String metadata, String data, String id,
+            long time) {
+        mType = type;
+        mObserverId = observerId;
+        mObserverVersion = observerVersion;
+        mStreamId = streamId;
+        mStreamVersion = streamVersion;
+        mUploadPriority = uploadPriority;
+        mMetadata = metadata;
+        mData = data;
+        mId = id;
+        mTime = time;
+    }
+
+    /**
+     * Creates a probe point
+     *
+     * @param observerId
+     * @param observerVersion
+     * @param streamId
+     * @param streamVersion
+     * @param uploadPriority
+     * @param metadata
+     * @param data
+     * @param id stable id of the point, which should also be in the metadata
+     * @param time milliseconds since the epoch when the point was recorded
+     * @return
+     */
+    public static PendingPoint probe(String observerId, int observerVersion, String streamId,
+            int streamVersion, int uploadPriority, String metadata, String data, String id,
+            long time) {
+        return new PendingPoint(TYPE_PROBE, observerId, observerVersion, streamId, streamVersion,
+                uploadPriority, metadata, data, id, time);
+    }
+
+    /**
+     * Creates a survey response point
+     *
+     * @param campaignUrn
+     * @param campaignCreationTimestamp
+     * @param uploadPriority
+     * @param data
+     * @param time milliseconds since the epoch when the response was written
+     * @return
+     */
+    public static PendingPoint response(String campaignUrn, String campaignCreationTimestamp,
+            int uploadPriority, String data, long time) {
+        return new PendingPoint(TYPE_RESPONSE, campaignUrn, 0, campaignCreationTimestamp, 0,
+                uploadPriority, null, data, null, time);
+    }
+
+    /**
+     * @return {@link #TYPE_PROBE} or {@link #TYPE_RESPONSE}
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return the observer id for probes, the campaign urn for responses
+     */
+    public String getObserverId() {
+        return mObserverId;
+    }
+
+    /**
+     * @return the observer version for probes, 0 for responses
+     */
+    public int getObserverVersion() {
+        return mObserverVersion;
+    }
+
+    /**
+     * @return the stream id for probes, the campaign creation timestamp for
+     *         responses
+     */
+    public String getStreamId() {
+        return mStreamId;
+    }
+
+    /**
+     * @return the stream version for probes, 0 for responses
+     */
+    public int getStreamVersion() {
+        return mStreamVersion;
+    }
+
+    public int getUploadPriority() {
+        return mUploadPriority;
+    }
+
+    public String getMetadata() {
+        return mMetadata;
+    }
+
+    public String getData() {
+        return mData;
+    }
+
+    /**
+     * @return the stable id of this point, or null if it has none
+     */
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * @return milliseconds since the epoch when this point was recorded
+     */
+    public long getTime() {
+        return mTime;
+    }
+}
@@ -0,0 +1,522 @@
+
+package org.ohmage.probemanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Weighted fair queue of pending points over a {@link PendingArena}. Points
+ * are queued per observer, or per campaign for responses, and are taken out
+ * with deficit round robin: each observer gets a share of every flush in
+ * proportion to its weight, so a noisy observer can't hold up the others.
+ * Points of one observer keep the order they were written in.
+ * <p>
+ * When the arena is full, points are evicted from the observer using the
+ * most bytes for its weight, so the observer filling the buffer is the one
+ * that loses data. An observer can also be given a hard quota of bytes, past
+ * which its own oldest points are evicted.
+ * <p>
+ * This class is not thread safe.
+ */
+class PendingQueue {
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * Bytes added to an observer's deficit for each unit of weight every
+     * round
+     */
+    private static final int QUANTUM = 1024;
+
+    /**
+     * Once eviction is needed, evict until this fraction of the arena is free
+     * so the arena is not compacted for every point added while full
+     */
+    private static final int EVICTION_HEADROOM_DIVISOR = 16;
+
+    /**
+     * Record length assumed when estimating free room before any points are
+     * held
+     */
+    private static final int DEFAULT_RECORD_LENGTH = 256;
+
+    private PendingArena mArena;
+
+    /**
+     * Queue of the point in each slot of the arena
+     */
+    private ObserverQueue[] mOwners;
+
+    /**
+     * Number of times ohmage refused the point in each slot
+     */
+    private int[] mRefusals;
+
+    private final HashMap<String, ObserverQueue> mQueues = new HashMap<String, ObserverQueue>();
+
+    /**
+     * Observers with queued points, in round robin order
+     */
+    private final ArrayList<ObserverQueue> mActive = new ArrayList<ObserverQueue>();
+
+    /**
+     * Position in {@link #mActive} of the observer being served
+     */
+    private int mCursor;
+
+    /**
+     * True if the observer being served already got its quantum this round
+     */
+    private boolean mQuantumGranted;
+
+    private int mSize;
+
+    /**
+     * The points queued for one observer
+     */
+    private static class ObserverQueue {
+
+        final String key;
+
+        int weight = DEFAULT_WEIGHT;
+
+        long quota = Long.MAX_VALUE;
+
+        long bytes;
+
+        long deficit;
+
+        boolean active;
+
+        /**
+         * Number of points taken out with poll and not yet removed or put back
+         */
+        int taken;
+
+        /**
+         * Ring of slots, oldest first
+         */
+        int[] slots = new int[8];
+
+        int first;
+
+        int count;
+
+        ObserverQueue(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return true if the queue holds no points and no settings, so it
+         *         can be forgotten
+         */
+        boolean isIdle() {
+            return count == 0 && taken == 0 && weight == DEFAULT_WEIGHT && quota == Long.MAX_VALUE;
+        }
+
+        void addLast(int slot) {
+            grow();
+            slots[(first + count) % slots.length] = slot;
+            count++;
+        }
+
+        void addFirst(int slot) {
+            grow();
+            first = (first - 1 + slots.length) % slots.length;
+            slots[first] = slot;
+            count++;
+        }
+
+        int peekFirst() {
+            return slots[first];
+        }
+
+        int pollFirst() {
+            int slot = slots[first];
+            first = (first + 1) % slots.length;
+            count--;
+            return slot;
+        }
+
+        private void grow() {
+            if (count < slots.length)
+                return;
+            int[] grown = new int[slots.length * 2];
+            for (int i = 0; i < count; i++)
+                grown[i] = slots[(first + i) % slots.length];
+            slots = grown;
+            first = 0;
+        }
+    }
+
+    PendingQueue(int byteCapacity, int maxPoints) {
+        mArena = new PendingArena(byteCapacity, maxPoints);
+        mOwners = new ObserverQueue[maxPoints];
+        mRefusals = new int[maxPoints];
+    }
+
+    /**
+     * @return the number of points queued or taken out but not yet removed
+     */
+    int size() {
+        return mArena.size();
+    }
+
+    boolean isEmpty() {
+        return mArena.isEmpty();
+    }
+
+    /**
+     * @return the number of observers the queue keeps state for
+     */
+    int observers() {
+        return mQueues.size();
+    }
+
+    /**
+     * @return the number of points waiting in the queues
+     */
+    int queued() {
+        return mSize;
+    }
+
+    int getMaxPoints() {
+        return mArena.getMaxPoints();
+    }
+
+    int getByteCapacity() {
+        return mArena.getByteCapacity();
+    }
+
+    long getBytesUsed() {
+        return mArena.getBytesUsed();
+    }
+
+    /**
+     * Estimates how many more points fit without evicting any, from the free
+     * slots and from the free bytes at the average length of the points held
+     *
+     * @return the number of points which can still be added
+     */
+    int remaining() {
+        long records = (mArena.getByteCapacity() - mArena.getBytesUsed()) / averageLength();
+        return (int) Math.max(0, Math.min(mArena.getMaxPoints() - mArena.size(), records));
+    }
+
+    /**
+     * Estimates how many more points of the observer fit without evicting any,
+     * taking its quota into account
+     *
+     * @param key observer id, or campaign urn for responses
+     * @return the number of points the observer can still add
+     */
+    int remaining(String key) {
+        int remaining = remaining();
+        ObserverQueue queue = mQueues.get(key);
+        if (queue == null || queue.quota == Long.MAX_VALUE)
+            return remaining;
+        long average = queue.count > 0 ? queue.bytes / queue.count : averageLength();
+        return (int) Math.max(0, Math.min(remaining, (queue.quota - queue.bytes) / average));
+    }
+
+    /**
+     * Sets the share of each flush and of the buffer the observer gets
+     * relative to the others
+     *
+     * @param key observer id, or campaign urn for responses
+     * @param weight
+     */
+    void setWeight(String key, int weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("weight must be positive");
+        queue(key).weight = weight;
+    }
+
+    /**
+     * Sets the most bytes of points the observer may have in the buffer
+     *
+     * @param key observer id, or campaign urn for responses
+     * @param quota
+     */
+    void setQuota(String key, long quota) {
+        if (quota <= 0)
+            throw new IllegalArgumentException("quota must be positive");
+        queue(key).quota = quota;
+    }
+
+    /**
+     * Adds the point to the end of its observer's queue, evicting points to
+     * make room for it if needed
+     *
+     * @param point
+     * @return the number of points which were evicted, or -1 if the point
+     *         can't fit and was not added
+     */
+    int add(PendingPoint point) {
+        ObserverQueue queue = queue(point.getObserverId());
+        long length = PendingArena.encodedLength(point);
+        if (length > queue.quota || length > mArena.getByteCapacity())
+            return -1;
+
+        int evicted = 0;
+        // The observer pays for going over its own quota first
+        while (queue.bytes + length > queue.quota && queue.count > 0) {
+            evict(queue);
+            evicted++;
+        }
+
+        if (!mArena.hasRoomFor(length)) {
+            long target = Math.max(length, mArena.getByteCapacity() / EVICTION_HEADROOM_DIVISOR);
+            while (!mArena.hasRoomFor(target) || !mArena.hasRoomFor(length)) {
+                ObserverQueue victim = largestShare();
+                if (victim == null)
+                    break;
+                evict(victim);
+                evicted++;
+                if (victim != queue)
+                    forgetIfIdle(victim);
+            }
+        }
+
+        int slot = mArena.add(point);
+        if (slot < 0)
+            return -1;
+
+        mOwners[slot] = queue;
+        mRefusals[slot] = 0;
+        queue.addLast(slot);
+        queue.bytes += length;
+        mSize++;
+        activate(queue);
+        return evicted;
+    }
+
+    /**
+     * Takes up to max points out of the queues in fair order. They stay in
+     * the arena until they are removed with {@link #remove(int)} or put back
+     * with {@link #requeue(int[], int, int)}.
+     *
+     * @param max
+     * @param slots receives the slots of the points
+     * @return the number of points taken
+     */
+    int poll(int max, int[] slots) {
+        int count = 0;
+        while (count < max && !mActive.isEmpty()) {
+            if (mCursor >= mActive.size())
+                mCursor = 0;
+            ObserverQueue queue = mActive.get(mCursor);
+            if (!mQuantumGranted) {
+                queue.deficit += (long) queue.weight * QUANTUM;
+                mQuantumGranted = true;
+            }
+
+            while (count < max && queue.count > 0) {
+                int length = mArena.length(queue.peekFirst());
+                if (length > queue.deficit)
+                    break;
+                queue.deficit -= length;
+                int slot = queue.pollFirst();
+                queue.bytes -= length;
+                queue.taken++;
+                mSize--;
+                slots[count++] = slot;
+            }
+
+            if (queue.count == 0) {
+                queue.deficit = 0;
+                queue.active = false;
+                mActive.remove(mCursor);
+                mQuantumGranted = false;
+            } else if (count < max) {
+                // Out of deficit, next observer
+                mCursor++;
+                mQuantumGranted = false;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a point which was taken out with {@link #poll(int, int[])}
+     *
+     * @param slot
+     * @return
+     */
+    PendingPoint get(int slot) {
+        return mArena.get(slot);
+    }
+
+    /**
+     * Counts a refusal by ohmage of a point which was taken out with
+     * {@link #poll(int, int[])}
+     *
+     * @param slot
+     * @return the number of times the point has been refused
+     */
+    int refuse(int slot) {
+        return ++mRefusals[slot];
+    }
+
+    /**
+     * Removes a point which was taken out with {@link #poll(int, int[])}
+     *
+     * @param slot
+     */
+    void remove(int slot) {
+        ObserverQueue queue = mOwners[slot];
+        release(slot);
+        queue.taken--;
+        forgetIfIdle(queue);
+    }
+
+    /**
+     * Puts points which were taken out with {@link #poll(int, int[])} back at
+     * the front of their queues, keeping their order. Their bytes are given
+     * back to their observers' deficits, so a point which is put back is not
+     * paid for again when it is taken out the next time.
+     *
+     * @param slots
+     * @param from
+     * @param to
+     */
+    void requeue(int[] slots, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            ObserverQueue queue = mOwners[slots[i]];
+            int length = mArena.length(slots[i]);
+            queue.addFirst(slots[i]);
+            queue.bytes += length;
+            queue.deficit += length;
+            queue.taken--;
+            mSize++;
+            activate(queue);
+        }
+    }
+
+    void clear() {
+        mArena.clear();
+        for (int i = 0; i < mOwners.length; i++)
+            mOwners[i] = null;
+        Iterator<ObserverQueue> queues = mQueues.values().iterator();
+        while (queues.hasNext()) {
+            ObserverQueue queue = queues.next();
+            queue.count = 0;
+            queue.first = 0;
+            queue.bytes = 0;
+            queue.deficit = 0;
+            queue.active = false;
+            queue.taken = 0;
+            if (queue.isIdle())
+                queues.remove();
+        }
+        mActive.clear();
+        mCursor = 0;
+        mQuantumGranted = false;
+        mSize = 0;
+    }
+
+    /**
+     * Changes the capacity of the buffer, keeping the points which fit. Must
+     * not be called while points are taken out.
+     *
+     * @param byteCapacity
+     * @param maxPoints
+     * @return the number of points which were evicted
+     */
+    int resize(int byteCapacity, int maxPoints) {
+        PendingArena old = mArena;
+        ArrayList<Integer> slots = new ArrayList<Integer>(mSize);
+        int[] batch = new int[256];
+        int count;
+        while ((count = poll(batch.length, batch)) > 0) {
+            for (int i = 0; i < count; i++)
+                slots.add(batch[i]);
+        }
+
+        mArena = new PendingArena(byteCapacity, maxPoints);
+        mOwners = new ObserverQueue[maxPoints];
+        mRefusals = new int[maxPoints];
+        clear();
+        int evicted = 0;
+        for (Integer slot : slots) {
+            int dropped = add(old.get(slot));
+            evicted += dropped < 0 ? 1 : dropped;
+        }
+        return evicted;
+    }
+
+    private long averageLength() {
+        int size = mArena.size();
+        return size > 0 ? Math.max(1, mArena.getBytesUsed() / size) : DEFAULT_RECORD_LENGTH;
+    }
+
+    private ObserverQueue queue(String key) {
+        ObserverQueue queue = mQueues.get(key);
+        if (queue == null) {
+            queue = new ObserverQueue(key);
+            mQueues.put(key, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Removes a point from the arena
+     */
+    private void release(int slot) {
+        mArena.remove(slot);
+        mOwners[slot] = null;
+    }
+
+    /**
+     * Forgets the queue of an observer with nothing buffered and no settings,
+     * so observers which stop writing don't stay in memory
+     */
+    private void forgetIfIdle(ObserverQueue queue) {
+        if (queue.isIdle())
+            mQueues.remove(queue.key);
+    }
+
+    private void activate(ObserverQueue queue) {
+        if (!queue.active) {
+            queue.active = true;
+            mActive.add(queue);
+        }
+    }
+
+    /**
+     * @return the observer with points queued using the most bytes for its
+     *         weight
+     */
+    private ObserverQueue largestShare() {
+        ObserverQueue largest = null;
+        for (ObserverQueue queue : mActive) {
+            if (queue.count > 0
+                    && (largest == null || queue.bytes * largest.weight > largest.bytes
+                            * queue.weight))
+                largest = queue;
+        }
+        return largest;
+    }
+
+    /**
+     * Removes the oldest point of the observer
+     */
+    private void evict(ObserverQueue queue) {
+        int slot = queue.pollFirst();
+        queue.bytes -= mArena.length(slot);
+        mSize--;
+        release(slot);
+        if (queue.count == 0) {
+            int index = mActive.indexOf(queue);
+            mActive.remove(index);
+            if (index < mCursor) {
+                mCursor--;
+            } else if (index == mCursor) {
+                mQuantumGranted = false;
+            }
+            queue.deficit = 0;
+            queue.active = false;
+        }
+    }
+}
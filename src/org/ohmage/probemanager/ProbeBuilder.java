@@ -183,10 +183,17 @@ public class ProbeBuilder implements ProbeWriter.Builder {
      * @return
      */
     public ProbeBuilder withId() {
-        mId = UUID.randomUUID().toString();
+        mId = newId();
         return this;
     }
 
+    /**
+     * @return a new UUID for a probe
+     */
+    static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
     public String id() {
         return mId;
     }
@@ -0,0 +1,727 @@
+
+package org.ohmage.probemanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact, append-only file of {@link PendingPoint}s used to move backlogs of
+ * probes and responses out of the {@link ProbeWriter} and back in. This class
+ * has no Android dependencies so the same files can be read and written on a
+ * workstation.
+ * <p>
+ * The file is a header followed by entries, each a marker byte, a varint body
+ * length and the body. A stream entry defines a stream the first time it is
+ * used, and each point entry refers to its stream by number. When the file is
+ * closed a footer is written with, for each stream, its time range and the
+ * offset and time of each of its points, followed by a trailer pointing at
+ * the footer. Tools can then find one stream or time window without decoding
+ * the rest of the file. Appending to a closed file overwrites its footer with
+ * new entries and writes a new footer on close. If a file was never closed,
+ * its index is rebuilt by scanning the entries when it is opened.
+ */
+public class ProbeFile implements Closeable {
+
+    private static final byte[] MAGIC = new byte[] {
+            'O', 'H', 'P', 'B'
+    };
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    private static final int TRAILER_MAGIC = 0x4f485046; // OHPF
+
+    private static final int TRAILER_LENGTH = 12;
+
+    private static final int ENTRY_STREAM = 'S';
+
+    private static final int ENTRY_POINT = 'P';
+
+    private static final int ENTRY_FOOTER = 'F';
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * A stream of points in the file. Probes are grouped by observer and
+     * stream, responses by campaign.
+     */
+    public static class Stream {
+
+        private final int mNumber;
+
+        private final int mType;
+
+        private final String mObserverId;
+
+        private final int mObserverVersion;
+
+        private final String mStreamId;
+
+        private final int mStreamVersion;
+
+        private long mMinTime = Long.MAX_VALUE;
+
+        private long mMaxTime = Long.MIN_VALUE;
+
+        private long[] mOffsets = new long[16];
+
+        private long[] mTimes = new long[16];
+
+        private int mCount;
+
+        Stream(int number, int type, String observerId, int observerVersion, String streamId,
+                int streamVersion) {
+            mNumber = number;
+            mType = type;
+            mObserverId = observerId;
+            mObserverVersion = observerVersion;
+            mStreamId = streamId;
+            mStreamVersion = streamVersion;
+        }
+
+        /**
+         * @return {@link PendingPoint#TYPE_PROBE} or
+         *         {@link PendingPoint#TYPE_RESPONSE}
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return the observer id for probes, the campaign urn for responses
+         */
+        public String getObserverId() {
+            return mObserverId;
+        }
+
+        public int getObserverVersion() {
+            return mObserverVersion;
+        }
+
+        /**
+         * @return the stream id for probes, the campaign creation timestamp
+         *         for responses
+         */
+        public String getStreamId() {
+            return mStreamId;
+        }
+
+        public int getStreamVersion() {
+            return mStreamVersion;
+        }
+
+        /**
+         * @return the number of points in this stream
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the time of the earliest point, or Long.MAX_VALUE if there
+         *         are none
+         */
+        public long getMinTime() {
+            return mMinTime;
+        }
+
+        /**
+         * @return the time of the latest point, or Long.MIN_VALUE if there are
+         *         none
+         */
+        public long getMaxTime() {
+            return mMaxTime;
+        }
+
+        void add(long offset, long time) {
+            if (mCount == mOffsets.length) {
+                long[] offsets = new long[mCount * 2];
+                long[] times = new long[mCount * 2];
+                System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+                System.arraycopy(mTimes, 0, times, 0, mCount);
+                mOffsets = offsets;
+                mTimes = times;
+            }
+            mOffsets[mCount] = offset;
+            mTimes[mCount] = time;
+            mCount++;
+            mMinTime = Math.min(mMinTime, time);
+            mMaxTime = Math.max(mMaxTime, time);
+        }
+    }
+
+    private final File mFile;
+
+    private final RandomAccessFile mInput;
+
+    private final ArrayList<Stream> mStreams = new ArrayList<Stream>();
+
+    private final HashMap<String, Stream> mStreamsByKey = new HashMap<String, Stream>();
+
+    /**
+     * Offset where the next entry will be written, which is where the footer
+     * starts until new entries are appended
+     */
+    private long mEnd;
+
+    /**
+     * True if entries have been appended since the footer was last written
+     */
+    private boolean mDirty;
+
+    private OutputStream mOutput;
+
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+
+    private ProbeFile(File file) throws IOException {
+        mFile = file;
+        if (!file.exists() || file.length() == 0) {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(MAGIC);
+                out.write(VERSION);
+            } finally {
+                out.close();
+            }
+        }
+
+        mInput = new RandomAccessFile(file, "r");
+        try {
+            readHeader();
+            if (!readFooter())
+                recover();
+        } catch (IOException e) {
+            mInput.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the file for reading and appending, creating it if it does not
+     * exist. An existing file is only modified once points are appended.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file exists but is not a probe file
+     */
+    public static ProbeFile open(File file) throws IOException {
+        return new ProbeFile(file);
+    }
+
+    /**
+     * @return the streams in this file, in the order they were first written
+     */
+    public List<Stream> getStreams() {
+        return Collections.unmodifiableList(mStreams);
+    }
+
+    /**
+     * @return the number of points in this file
+     */
+    public int size() {
+        int size = 0;
+        for (Stream stream : mStreams)
+            size += stream.getCount();
+        return size;
+    }
+
+    /**
+     * @return the time of the earliest point in this file, or Long.MAX_VALUE
+     *         if there are none
+     */
+    public long getMinTime() {
+        long min = Long.MAX_VALUE;
+        for (Stream stream : mStreams)
+            min = Math.min(min, stream.getMinTime());
+        return min;
+    }
+
+    /**
+     * @return the time of the latest point in this file, or Long.MIN_VALUE if
+     *         there are none
+     */
+    public long getMaxTime() {
+        long max = Long.MIN_VALUE;
+        for (Stream stream : mStreams)
+            max = Math.max(max, stream.getMaxTime());
+        return max;
+    }
+
+    /**
+     * Appends the point to the end of the file
+     *
+     * @param point
+     * @throws IOException
+     */
+    public void append(PendingPoint point) throws IOException {
+        if (mOutput == null) {
+            // Drop the old footer, a new one is written on close
+            RandomAccessFile truncate = new RandomAccessFile(mFile, "rw");
+            try {
+                truncate.setLength(mEnd);
+            } finally {
+                truncate.close();
+            }
+            mOutput = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        }
+        mDirty = true;
+
+        Stream stream = mStreamsByKey.get(key(point.getType(), point.getObserverId(),
+                point.getObserverVersion(), point.getStreamId(), point.getStreamVersion()));
+        if (stream == null) {
+            stream = new Stream(mStreams.size(), point.getType(), point.getObserverId(),
+                    point.getObserverVersion(), point.getStreamId(), point.getStreamVersion());
+            writeStream(mBody, stream);
+            writeEntry(ENTRY_STREAM);
+            addStream(stream);
+        }
+
+        writeVarLong(mBody, stream.mNumber);
+        writeVarLong(mBody, zigzag(point.getTime()));
+        writeVarLong(mBody, zigzag(point.getUploadPriority()));
+        writeString(mBody, point.getId());
+        writeString(mBody, point.getMetadata());
+        writeString(mBody, point.getData());
+        stream.add(mEnd, point.getTime());
+        writeEntry(ENTRY_POINT);
+    }
+
+    /**
+     * Reads every point in the file in the order they were written
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<PendingPoint> readAll() throws IOException {
+        ArrayList<PendingPoint> points = new ArrayList<PendingPoint>(size());
+        PointIterator i = points();
+        try {
+            while (i.hasNext())
+                points.add(i.next());
+        } finally {
+            i.close();
+        }
+        return points;
+    }
+
+    /**
+     * Reads the points in the file one at a time in the order they were
+     * written, so files larger than the heap can be read. Points appended
+     * after this is called are not included.
+     *
+     * @return an iterator which must be closed
+     * @throws IOException
+     */
+    public PointIterator points() throws IOException {
+        flush();
+        return new PointIterator();
+    }
+
+    /**
+     * Writes the entries appended so far to the file without writing the
+     * footer. If the file is not closed, the entries are found again when it
+     * is next opened.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (mOutput != null)
+            mOutput.flush();
+    }
+
+    /**
+     * Reads the points of one stream recorded between from and to inclusive.
+     * Only the matching points are decoded.
+     *
+     * @param stream
+     * @param from
+     * @param to
+     * @return
+     * @throws IOException
+     */
+    public List<PendingPoint> read(Stream stream, long from, long to) throws IOException {
+        flush();
+        ArrayList<PendingPoint> points = new ArrayList<PendingPoint>();
+        if (stream.getCount() == 0 || stream.getMaxTime() < from || stream.getMinTime() > to)
+            return points;
+
+        for (int i = 0; i < stream.mCount; i++) {
+            if (stream.mTimes[i] < from || stream.mTimes[i] > to)
+                continue;
+            mInput.seek(stream.mOffsets[i] + 1);
+            points.add(readPoint(readBody(mInput, mEnd - mInput.getFilePointer())));
+        }
+        return points;
+    }
+
+    /**
+     * Writes the footer if anything was appended and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mOutput != null) {
+                if (mDirty)
+                    writeFooter();
+                mOutput.close();
+                mOutput = null;
+            }
+        } finally {
+            mInput.close();
+        }
+    }
+
+    private void addStream(Stream stream) {
+        mStreams.add(stream);
+        mStreamsByKey.put(key(stream.mType, stream.mObserverId, stream.mObserverVersion,
+                stream.mStreamId, stream.mStreamVersion), stream);
+    }
+
+    private static String key(int type, String observerId, int observerVersion, String streamId,
+            int streamVersion) {
+        return type + "\u0000" + observerId + "\u0000" + observerVersion + "\u0000" + streamId
+                + "\u0000" + streamVersion;
+    }
+
+    /**
+     * Writes the body which has been built up in {@link #mBody} as an entry
+     */
+    private void writeEntry(int marker) throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(6);
+        prefix.write(marker);
+        writeVarLong(prefix, mBody.size());
+        prefix.writeTo(mOutput);
+        mBody.writeTo(mOutput);
+        mEnd += prefix.size() + mBody.size();
+        mBody.reset();
+    }
+
+    private void writeFooter() throws IOException {
+        writeVarLong(mBody, mStreams.size());
+        for (Stream stream : mStreams) {
+            writeStream(mBody, stream);
+            writeVarLong(mBody, stream.mCount);
+            long offset = 0;
+            long time = 0;
+            for (int i = 0; i < stream.mCount; i++) {
+                writeVarLong(mBody, stream.mOffsets[i] - offset);
+                writeVarLong(mBody, zigzag(stream.mTimes[i] - time));
+                offset = stream.mOffsets[i];
+                time = stream.mTimes[i];
+            }
+        }
+
+        long footer = mEnd;
+        writeEntry(ENTRY_FOOTER);
+        writeBigEndian(mOutput, footer, 8);
+        writeBigEndian(mOutput, TRAILER_MAGIC, 4);
+        // The end stays at the footer so appends overwrite it
+        mEnd = footer;
+        mDirty = false;
+    }
+
+    private void readHeader() throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        mInput.seek(0);
+        mInput.readFully(header);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i])
+                throw new IOException(mFile + " is not a probe file");
+        }
+        if (header[MAGIC.length] != VERSION)
+            throw new IOException("Unsupported probe file version " + header[MAGIC.length]);
+    }
+
+    /**
+     * Loads the streams and index from the footer
+     *
+     * @return false if the file has no valid footer
+     */
+    private boolean readFooter() throws IOException {
+        long length = mInput.length();
+        if (length < HEADER_LENGTH + TRAILER_LENGTH)
+            return false;
+
+        mInput.seek(length - TRAILER_LENGTH);
+        long footer = mInput.readLong();
+        if (mInput.readInt() != TRAILER_MAGIC || footer < HEADER_LENGTH
+                || footer >= length - TRAILER_LENGTH)
+            return false;
+
+        mInput.seek(footer);
+        if (mInput.read() != ENTRY_FOOTER)
+            return false;
+        Decoder in = new Decoder(readBody(mInput, length - TRAILER_LENGTH - footer - 1));
+        int count = (int) in.readVarLong();
+        for (int i = 0; i < count; i++) {
+            Stream stream = readStream(in, i);
+            int points = (int) in.readVarLong();
+            long offset = 0;
+            long time = 0;
+            for (int j = 0; j < points; j++) {
+                offset += in.readVarLong();
+                time += unzigzag(in.readVarLong());
+                stream.add(offset, time);
+            }
+            addStream(stream);
+        }
+        mEnd = footer;
+        return true;
+    }
+
+    /**
+     * Rebuilds the streams and index from the entries of a file which was not
+     * closed. Anything after the last complete entry is ignored and will be
+     * overwritten by the next append.
+     */
+    private void recover() throws IOException {
+        long length = mInput.length();
+        long offset = HEADER_LENGTH;
+        while (offset < length) {
+            mInput.seek(offset);
+            int marker = mInput.read();
+            byte[] body;
+            try {
+                body = readBody(mInput, length - offset - 1);
+            } catch (EOFException e) {
+                break;
+            }
+
+            if (marker == ENTRY_STREAM) {
+                addStream(readStream(new Decoder(body), mStreams.size()));
+            } else if (marker == ENTRY_POINT) {
+                Decoder in = new Decoder(body);
+                int number = (int) in.readVarLong();
+                if (number >= mStreams.size())
+                    break;
+                mStreams.get(number).add(offset, unzigzag(in.readVarLong()));
+            } else {
+                break;
+            }
+            offset = mInput.getFilePointer();
+        }
+        mEnd = offset;
+    }
+
+    /**
+     * Reads the length and body of an entry whose marker has been read
+     *
+     * @param in
+     * @param remaining bytes left in the entry area, used to reject lengths
+     *            of entries which were cut off
+     */
+    private static byte[] readBody(DataInput in, long remaining) throws IOException {
+        long length = readLength(in, remaining);
+        byte[] body = new byte[(int) length];
+        in.readFully(body);
+        return body;
+    }
+
+    private static long readLength(DataInput in, long remaining) throws IOException {
+        long length = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (length > remaining - varLongSize(length))
+                    throw new EOFException();
+                return length;
+            }
+        }
+        throw new IOException("Malformed entry length");
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private PendingPoint readPoint(byte[] body) throws IOException {
+        Decoder in = new Decoder(body);
+        Stream stream = mStreams.get((int) in.readVarLong());
+        long time = unzigzag(in.readVarLong());
+        int uploadPriority = (int) unzigzag(in.readVarLong());
+        String id = in.readString();
+        String metadata = in.readString();
+        String data = in.readString();
+        return new PendingPoint(stream.mType, stream.mObserverId, stream.mObserverVersion,
+                stream.mStreamId, stream.mStreamVersion, uploadPriority, metadata, data, id, time);
+    }
+
+    private static Stream readStream(Decoder in, int number) throws IOException {
+        int type = (int) in.readVarLong();
+        String observerId = in.readString();
+        int observerVersion = (int) unzigzag(in.readVarLong());
+        String streamId = in.readString();
+        int streamVersion = (int) unzigzag(in.readVarLong());
+        return new Stream(number, type, observerId, observerVersion, streamId, streamVersion);
+    }
+
+    private static void writeStream(ByteArrayOutputStream out, Stream stream) {
+        writeVarLong(out, stream.mType);
+        writeString(out, stream.mObserverId);
+        writeVarLong(out, zigzag(stream.mObserverVersion));
+        writeString(out, stream.mStreamId);
+        writeVarLong(out, zigzag(stream.mStreamVersion));
+    }
+
+    /**
+     * Writes the string as its UTF-8 length plus one followed by the bytes. A
+     * length of zero means null.
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = value.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeBigEndian(OutputStream out, long value, int bytes)
+            throws IOException {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads the points of the file in order, see {@link ProbeFile#points()}
+     */
+    public class PointIterator implements Closeable {
+
+        private final DataInputStream mIn;
+
+        private long mRemaining;
+
+        private PendingPoint mNext;
+
+        PointIterator() throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                mIn.skipBytes(HEADER_LENGTH);
+                mRemaining = mEnd - HEADER_LENGTH;
+                advance();
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+        }
+
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        public PendingPoint next() throws IOException {
+            if (mNext == null)
+                throw new NoSuchElementException();
+            PendingPoint point = mNext;
+            advance();
+            return point;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private void advance() throws IOException {
+            mNext = null;
+            while (mNext == null && mRemaining > 0) {
+                int marker = mIn.readUnsignedByte();
+                long length = readLength(mIn, mRemaining);
+                byte[] body = new byte[(int) length];
+                mIn.readFully(body);
+                if (marker == ENTRY_POINT)
+                    mNext = readPoint(body);
+                mRemaining -= 1 + varLongSize(length) + length;
+            }
+        }
+    }
+
+    /**
+     * Reads values out of an entry body
+     */
+    private static class Decoder {
+
+        private final byte[] mBytes;
+
+        private int mPosition;
+
+        Decoder(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mBytes.length)
+                    throw new EOFException();
+                int b = mBytes[mPosition++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            int length = (int) readVarLong();
+            if (length == 0)
+                return null;
+            length--;
+            if (mPosition + length > mBytes.length)
+                throw new EOFException();
+            String value = new String(mBytes, mPosition, length, UTF8);
+            mPosition += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+
+package org.ohmage.probemanager;
+
+/**
+ * Reactive stream interfaces used by the {@link ProbeSink} and
+ * {@link ProbeWriter#events()}. They have the same shape and rules as
+ * java.util.concurrent.Flow, which is not available on Android, so adapting
+ * to Flow or to any Reactive Streams library is a matter of forwarding each
+ * call.
+ */
+public final class ProbeFlow {
+
+    private ProbeFlow() {
+    }
+
+    /**
+     * A producer of items which are sent to subscribers as they ask for them
+     */
+    public static interface Publisher<T> {
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. {@link #onNext(Object)} is only called for items
+     * which were asked for with {@link Subscription#request(long)}.
+     */
+    public static interface Subscriber<T> {
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    /**
+     * Link between a publisher and a subscriber
+     */
+    public static interface Subscription {
+        /**
+         * Asks for up to n more items
+         *
+         * @param n
+         */
+        public void request(long n);
+
+        public void cancel();
+    }
+}
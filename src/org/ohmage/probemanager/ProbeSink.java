@@ -0,0 +1,181 @@
+
+package org.ohmage.probemanager;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Subscriber which writes {@link ProbeBuilder}s and {@link ResponseBuilder}s
+ * from a reactive pipeline to a {@link ProbeWriter}. Items are only requested
+ * when the writer has room for them: up to the window, and no more than the
+ * free buffer space, which shrinks while points are waiting for the writer to
+ * connect or for their batch to be sent. When the buffer is full the sink
+ * stops requesting, which slows the producers down, until the writer flushes.
+ */
+public class ProbeSink implements ProbeFlow.Subscriber<ProbeWriter.Builder> {
+
+    private static final String TAG = "ProbeSink";
+
+    /**
+     * Number of items requested ahead of time by default
+     */
+    public static final int DEFAULT_WINDOW = 64;
+
+    private final ProbeWriter mWriter;
+
+    private final int mWindow;
+
+    /**
+     * Observer all items are written for, or null if they are mixed
+     */
+    private final String mObserverId;
+
+    private ProbeFlow.Subscription mSubscription;
+
+    private ProbeFlow.Subscription mEventSubscription;
+
+    /**
+     * Number of items which were requested but not yet received
+     */
+    private long mOutstanding;
+
+    private boolean mDone;
+
+    public ProbeSink(ProbeWriter writer) {
+        this(writer, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param writer the writer to write items to
+     * @param window maximum number of items requested ahead of time
+     */
+    public ProbeSink(ProbeWriter writer, int window) {
+        this(writer, window, null);
+    }
+
+    /**
+     * @param writer the writer to write items to
+     * @param window maximum number of items requested ahead of time
+     * @param observerId observer id, or campaign urn for responses, of every
+     *            item, so requests stay within its quota
+     */
+    public ProbeSink(ProbeWriter writer, int window, String observerId) {
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+        mWriter = writer;
+        mWindow = window;
+        mObserverId = observerId;
+    }
+
+    @Override
+    public void onSubscribe(ProbeFlow.Subscription subscription) {
+        synchronized (this) {
+            if (mSubscription != null || mDone) {
+                subscription.cancel();
+                return;
+            }
+            mSubscription = subscription;
+        }
+
+        // Ask for more whenever the writer connects or frees up its buffer
+        mWriter.events().subscribe(new ProbeFlow.Subscriber<ProbeWriter.Event>() {
+            @Override
+            public void onSubscribe(ProbeFlow.Subscription subscription) {
+                synchronized (ProbeSink.this) {
+                    mEventSubscription = subscription;
+                }
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ProbeWriter.Event event) {
+                requestMore();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        requestMore();
+    }
+
+    @Override
+    public void onNext(ProbeWriter.Builder item) {
+        synchronized (this) {
+            if (mOutstanding > 0)
+                mOutstanding--;
+        }
+
+        try {
+            item.write(mWriter);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to write item", e);
+        }
+
+        requestMore();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Log.e(TAG, "Upstream failed", throwable);
+        finish();
+    }
+
+    @Override
+    public void onComplete() {
+        finish();
+    }
+
+    /**
+     * Stops requesting items
+     */
+    public void cancel() {
+        ProbeFlow.Subscription subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+        }
+        finish();
+        if (subscription != null)
+            subscription.cancel();
+    }
+
+    private void finish() {
+        ProbeFlow.Subscription events;
+        synchronized (this) {
+            mDone = true;
+            events = mEventSubscription;
+            mEventSubscription = null;
+        }
+        if (events != null)
+            events.cancel();
+    }
+
+    /**
+     * Requests as many items as the writer currently has room for
+     */
+    private void requestMore() {
+        // Ask the writer before taking our own lock, the writer publishes
+        // events to us while holding its lock
+        long room = Math.min(mWindow, mObserverId != null ? mWriter
+                .getRemainingBufferCapacity(mObserverId) : mWriter.getRemainingBufferCapacity());
+
+        long request;
+        ProbeFlow.Subscription subscription;
+        synchronized (this) {
+            if (mDone || mSubscription == null)
+                return;
+
+            request = room - mOutstanding;
+            if (request <= 0)
+                return;
+            mOutstanding += request;
+            subscription = mSubscription;
+        }
+        subscription.request(request);
+    }
+}
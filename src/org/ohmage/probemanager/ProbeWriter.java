@@ -5,14 +5,24 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Easily connect and write probes to ohmage to be uploaded.
@@ -28,9 +38,45 @@ public class ProbeWriter implements ServiceConnection {
     public static final int DEFAULT_UPLOAD_PRIORITY = 0;
 
     /**
-     * Holds a list of probes which were collected before the service connected
+     * Number of points buffered while disconnected before the oldest are
+     * dropped
      */
-    private final ArrayList<Builder> mBuffer;
+    public static final int DEFAULT_BUFFER_CAPACITY = 10000;
+
+    /**
+     * Bytes of encoded points buffered while disconnected before the oldest
+     * are dropped
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private static final int EXPORT_BATCH_SIZE = 256;
+
+    /**
+     * Fewest points worth handing to another encoder thread
+     */
+    private static final int MIN_ENCODE_RUN = 16;
+
+    /**
+     * Number of flushes ohmage may refuse a buffered point in before it is
+     * exported or dropped, so it can't hold up the points behind it forever
+     */
+    private static final int MAX_REFUSALS = 3;
+
+    private static final ThreadFactory ENCODER_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ProbeWriter encoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Holds the probes which were collected before the service connected or
+     * are waiting to be batched, encoded outside the java heap and queued
+     * fairly per observer
+     */
+    private final PendingQueue mBuffer;
 
     private IProbeManager dataService;
 
@@ -40,35 +86,209 @@ public class ProbeWriter implements ServiceConnection {
 
     private boolean mShouldClose = false;
 
+    private final EventPublisher<Event> mEvents;
+
+    /**
+     * Handles of the streams registered on the current connection
+     */
+    private final HashMap<String, Integer> mStreamHandles;
+
+    /**
+     * False if the service we are connected to does not support stream
+     * handles
+     */
+    private boolean mStreamHandlesSupported;
+
+    /**
+     * True if points written while connected are batched
+     */
+    private boolean mBatching;
+
+    /**
+     * True once an observer weight or quota is set. Shares only apply to
+     * points which go through the buffer, so points written while connected
+     * are then batched as well.
+     */
+    private boolean mFairShares;
+
+    private BatchController mBatchController;
+
+    /**
+     * Thread the flush timer runs on, so flushes don't hold up the main thread
+     */
+    private HandlerThread mFlushThread;
+
+    private Handler mHandler;
+
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProbeWriter.this) {
+                mFlushScheduled = false;
+                if (dataService != null)
+                    flushBuffer();
+                if (mShouldClose)
+                    close();
+            }
+        }
+    };
+
+    /**
+     * Batches of points being sent, reused between flushes. With pipelining
+     * one is decoded while the other is sent.
+     */
+    private final Batch[] mBatches = new Batch[] {
+            new Batch(), new Batch()
+    };
+
+    /**
+     * Number of threads decoding the next batch while one is sent, or 0 to
+     * decode and send on the flushing thread
+     */
+    private int mEncoderThreads;
+
+    private ExecutorService mEncoders;
+
+    private long mPointsSent;
+
+    private long mTransactions;
+
+    /**
+     * Time spent flushing points and the number of points sent, for the
+     * sustained rate
+     */
+    private long mFlushNanos;
+
+    private long mFlushedPoints;
+
+    private File mExportFile;
+
+    /**
+     * The export file, kept open while ohmage can't be reached so each point
+     * is appended without rewriting the file's index
+     */
+    private ProbeFile mExportOut;
+
+    /**
+     * File being imported, which points are never exported back into
+     */
+    private File mImporting;
+
+    /**
+     * True if points were dropped during the current import, so the file is
+     * kept even if the caller asked to consume it
+     */
+    private boolean mImportDropped;
+
+    private volatile RecentPoints mRecentPoints;
+
+    /**
+     * Points taken out of the buffer to be sent together
+     */
+    private static class Batch {
+
+        int[] slots = new int[0];
+
+        PendingPoint[] points = new PendingPoint[0];
+
+        int count;
+
+        /**
+         * Number of points from the start which were sent, or skipped because
+         * ohmage already has them
+         */
+        int done;
+
+        void ensureCapacity(int capacity) {
+            if (slots.length < capacity) {
+                slots = new int[capacity];
+                points = new PendingPoint[capacity];
+            }
+        }
+    }
+
     public static interface ServiceConnectionChange {
         public void onServiceConnected(ProbeWriter writer);
 
         public void onServiceDisconnected(ProbeWriter writer);
     }
 
+    /**
+     * A change in the state of the writer, published by {@link #events()}
+     */
+    public static class Event {
+
+        /**
+         * The writer connected to ohmage and sent the points which were
+         * buffered while it was disconnected
+         */
+        public static final int CONNECTED = 0;
+
+        /**
+         * The writer lost its connection to ohmage
+         */
+        public static final int DISCONNECTED = 1;
+
+        /**
+         * The writer finished sending the points in its buffer, which were
+         * written while it was disconnected or are waiting to be batched
+         */
+        public static final int FLUSHED = 2;
+
+        private final int mType;
+
+        private final int mBufferedCount;
+
+        Event(int type, int bufferedCount) {
+            mType = type;
+            mBufferedCount = bufferedCount;
+        }
+
+        /**
+         * @return one of {@link #CONNECTED}, {@link #DISCONNECTED} or
+         *         {@link #FLUSHED}
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return the number of points still buffered when this event happened
+         */
+        public int getBufferedCount() {
+            return mBufferedCount;
+        }
+    }
+
     public ProbeWriter(Context context) {
         mContext = context;
-        mBuffer = new ArrayList<Builder>();
+        mBuffer = new PendingQueue(DEFAULT_BUFFER_BYTES, DEFAULT_BUFFER_CAPACITY);
+        mEvents = new EventPublisher<Event>();
+        mStreamHandles = new HashMap<String, Integer>();
+        mBatchController = new BatchController();
     }
 
     /** is called once the bind succeeds */
     @Override
     public synchronized void onServiceConnected(ComponentName name, IBinder service) {
         dataService = IProbeManager.Stub.asInterface(service);
+        closeExportFile();
+
+        // Handles from an earlier connection are no longer valid, streams are
+        // registered again as they are written to
+        mStreamHandles.clear();
+        mStreamHandlesSupported = true;
 
         if (mListener != null)
             mListener.onServiceConnected(this);
 
-        // Write any probes which came before we were connected
-        for (Builder probe : mBuffer) {
-            try {
-                probe.write(this);
-            } catch (RemoteException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-        mBuffer.clear();
+        // Write any probes which came before we were connected. Subscribers
+        // hear about the connection after, so what they write comes behind.
+        flushBuffer();
+        if (dataService != null)
+            mEvents.publish(new Event(Event.CONNECTED, mBuffer.size()));
 
         if(mShouldClose)
             close();
@@ -76,11 +296,18 @@ public class ProbeWriter implements ServiceConnection {
 
     /*** is called once the remote service is no longer available */
     @Override
-    public void onServiceDisconnected(ComponentName name) {
+    public synchronized void onServiceDisconnected(ComponentName name) {
+        lostConnection();
+    }
+
+    private void lostConnection() {
+        if (dataService == null)
+            return;
         dataService = null;
 
         if (mListener != null)
             mListener.onServiceDisconnected(this);
+        mEvents.publish(new Event(Event.DISCONNECTED, mBuffer.size()));
     }
 
     public boolean connect() {
@@ -92,10 +319,204 @@ public class ProbeWriter implements ServiceConnection {
         mListener = listener;
     }
 
-    public void close() {
+    /**
+     * Publishes an {@link Event} each time the writer connects, disconnects
+     * or finishes replaying buffered points, so reactive pipelines can follow
+     * the writer without polling.
+     *
+     * @return the event publisher
+     */
+    public ProbeFlow.Publisher<Event> events() {
+        return mEvents;
+    }
+
+    /**
+     * @return true if the writer is connected to ohmage
+     */
+    public synchronized boolean isConnected() {
+        return dataService != null;
+    }
+
+    /**
+     * Sets the number of points which are buffered while disconnected. Once
+     * the buffer is full the oldest points are dropped.
+     *
+     * @param capacity
+     */
+    public synchronized void setBufferCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        logEvicted(mBuffer.resize(mBuffer.getByteCapacity(), capacity));
+    }
+
+    /**
+     * Sets the number of bytes of encoded points which are buffered while
+     * disconnected. The buffer is kept outside the java heap so it does not
+     * add to garbage collection. Once it is full the oldest points are
+     * dropped.
+     *
+     * @param bytes
+     */
+    public synchronized void setBufferBytes(int bytes) {
+        logEvicted(mBuffer.resize(bytes, mBuffer.getMaxPoints()));
+    }
+
+    /**
+     * Sets the share of the buffer and of each flush an observer gets
+     * relative to the others, which all have a weight of 1 unless set. When
+     * the buffer is full, points are evicted from the observer using the most
+     * of it for its weight, so one noisy observer can't starve the others or
+     * push them into eviction. Points written while connected are batched
+     * from then on, as if {@link #setBatching(boolean)} was set, so they are
+     * shared out by weight too.
+     *
+     * @param observerId observer id, or campaign urn for responses
+     * @param weight
+     */
+    public synchronized void setObserverWeight(String observerId, int weight) {
+        mBuffer.setWeight(observerId, weight);
+        mFairShares = true;
+    }
+
+    /**
+     * Limits the bytes of buffered points an observer may have. Past the
+     * quota its own oldest points are evicted. Like
+     * {@link #setObserverWeight(String, int)}, this batches points written
+     * while connected.
+     *
+     * @param observerId observer id, or campaign urn for responses
+     * @param bytes
+     */
+    public synchronized void setObserverQuota(String observerId, int bytes) {
+        mBuffer.setQuota(observerId, bytes);
+        mFairShares = true;
+    }
+
+    /**
+     * @return the number of bytes taken by buffered points
+     */
+    public synchronized long getBufferedBytes() {
+        return mBuffer.getBytesUsed();
+    }
+
+    /**
+     * @return the number of points waiting for the writer to connect
+     */
+    public synchronized int getBufferedCount() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Estimates the number of points which can still be buffered before the
+     * oldest are dropped. The buffer is bounded both in points and in bytes,
+     * so the free bytes are divided by the average size of the buffered
+     * points.
+     *
+     * @return the number of points which can still be buffered
+     */
+    public synchronized int getRemainingBufferCapacity() {
+        return mBuffer.remaining();
+    }
+
+    /**
+     * Like {@link #getRemainingBufferCapacity()}, but also limited by the
+     * quota set for the observer with {@link #setObserverQuota(String, int)}
+     *
+     * @param observerId observer id, or campaign urn for responses
+     * @return the number of points of the observer which can still be
+     *         buffered
+     */
+    public synchronized int getRemainingBufferCapacity(String observerId) {
+        return mBuffer.remaining(observerId);
+    }
+
+    /**
+     * Batches points written while connected instead of sending each one
+     * immediately. Batches are sent when they reach the size chosen by the
+     * {@link BatchController} or when its flush interval passes, whichever
+     * comes first.
+     *
+     * @param batching
+     */
+    public synchronized void setBatching(boolean batching) {
+        mBatching = batching;
+        if (!batching)
+            flushBuffer();
+    }
+
+    /**
+     * Sets the controller which chooses the batch size and flush interval
+     * from the latency of calls to ohmage. Use this to change the bounds and
+     * target latency for a class of devices.
+     *
+     * @param controller
+     */
+    public synchronized void setBatchController(BatchController controller) {
+        if (controller == null)
+            throw new IllegalArgumentException("controller must not be null");
+        mBatchController = controller;
+    }
+
+    /**
+     * Keeps the most recent probes written to each stream in a cache which
+     * can be read without a call to ohmage.
+     *
+     * @param recentPoints the cache, or null to stop caching
+     */
+    public void setRecentPoints(RecentPoints recentPoints) {
+        mRecentPoints = recentPoints;
+    }
+
+    /**
+     * Gets the cache of recent probes. Reading it does not wait for the
+     * writer.
+     *
+     * @return the cache, or null if none was set
+     */
+    public RecentPoints getRecentPoints() {
+        return mRecentPoints;
+    }
+
+    /**
+     * Decodes the next batch of buffered points on a pool of threads while
+     * the current batch is being sent to ohmage, so large backlogs are sent
+     * faster on devices with more than one core. The points of each stream
+     * are still sent in order.
+     *
+     * @param encoderThreads number of threads decoding points, or 0 to decode
+     *            and send on the thread which flushes the buffer
+     */
+    public synchronized void setPipelining(int encoderThreads) {
+        if (encoderThreads < 0)
+            throw new IllegalArgumentException("encoderThreads must not be negative");
+        mEncoderThreads = encoderThreads;
+        shutdownEncoders();
+    }
+
+    /**
+     * @return a snapshot of what the writer has done so far
+     */
+    public synchronized WriterMetrics getMetrics() {
+        double pointsPerSecond = mFlushNanos > 0 ? mFlushedPoints * 1e9 / mFlushNanos : 0;
+        return new WriterMetrics(mPointsSent, mTransactions, mBuffer.size(),
+                mBuffer.getBytesUsed(), pointsPerSecond, mBatchController);
+    }
+
+    /**
+     * Flushes the buffer and unbinds from ohmage. If points are still
+     * buffered, the writer stays bound until a later flush sends them.
+     */
+    public synchronized void close() {
+        if (dataService != null)
+            flushBuffer();
+
         if(!mBuffer.isEmpty()) {
             mShouldClose = true;
         } else {
+            mShouldClose = false;
+            stopFlushThread();
+            shutdownEncoders();
+            closeExportFile();
             mContext.unbindService(this);
             dataService = null;
         }
@@ -115,26 +536,30 @@ public class ProbeWriter implements ServiceConnection {
             throw new RuntimeException("data not valid json");
         }
 
-        // Check that the metadata is valid json
-        if (!TextUtils.isEmpty(metadata)) {
-            try {
-                new JSONObject(metadata);
-            } catch (JSONException e) {
-                throw new RuntimeException("metadata not valid json");
+        // Check that the metadata is valid json and stamp it with an id so a
+        // replayed point can be recognized
+        String id;
+        long time;
+        try {
+            JSONObject json = TextUtils.isEmpty(metadata) ? new JSONObject() : new JSONObject(
+                    metadata);
+            time = json.optLong("time", System.currentTimeMillis());
+            id = json.optString("id", null);
+            if (TextUtils.isEmpty(id)) {
+                id = ProbeBuilder.newId();
+                json.put("id", id);
+                metadata = json.toString();
             }
+        } catch (JSONException e) {
+            throw new RuntimeException("metadata not valid json");
         }
 
-        if (dataService != null) {
-            dataService.writeProbe(observerId, observerVersion, streamId, streamVersion,
-                    uploadPriority, metadata, data);
-        } else {
-            mBuffer.add(new ProbeBuilder(observerId, observerVersion)
-                    .setStream(streamId, streamVersion).setData(data).setMetadata(metadata)
-                    .setUploadPriority(uploadPriority));
-            if (!connect())
-                mBuffer.clear(); // No point in buffering data if we can't
-                                 // connect to the service
-        }
+        PendingPoint point = PendingPoint.probe(observerId, observerVersion, streamId,
+                streamVersion, uploadPriority, metadata, data, id, time);
+        RecentPoints recentPoints = mRecentPoints;
+        if (recentPoints != null)
+            recentPoints.add(point);
+        write(point);
     }
 
     public void write(String observerId, int observerVersion, String streamId, int streamVersion,
@@ -145,20 +570,638 @@ public class ProbeWriter implements ServiceConnection {
 
     public synchronized void writeResponse(String campaignUrn, String campaignCreationTimestamp,
             int uploadPriority, String data) throws RemoteException {
+        write(PendingPoint.response(campaignUrn, campaignCreationTimestamp, uploadPriority, data,
+                System.currentTimeMillis()));
+    }
+
+    public void writeResponse(String campaignUrn, String campaignCreationTimestamp, String data)
+            throws RemoteException {
+        writeResponse(campaignUrn, campaignCreationTimestamp, DEFAULT_UPLOAD_PRIORITY, data);
+    }
+
+    /**
+     * Sets a file which buffered points are exported to when ohmage can't be
+     * reached because it is not installed, instead of dropping them. The
+     * points can be written once ohmage is available with
+     * {@link #importFile(File)}. The file stays open while ohmage can't be
+     * reached and its index is written when the writer connects or closes.
+     *
+     * @param file a {@link ProbeFile}, or null to drop the points
+     */
+    public synchronized void setExportFile(File file) {
+        closeExportFile();
+        mExportFile = file;
+    }
+
+    /**
+     * Appends all buffered points to a {@link ProbeFile} and removes them from
+     * the buffer.
+     *
+     * @param file
+     * @return the number of points exported
+     * @throws IOException
+     */
+    public synchronized int exportBuffer(File file) throws IOException {
+        if (mExportOut != null && file.equals(mExportFile)) {
+            int count = exportBuffer(mExportOut);
+            mExportOut.flush();
+            return count;
+        }
+
+        ProbeFile out = ProbeFile.open(file);
+        try {
+            return exportBuffer(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private int exportBuffer(ProbeFile out) throws IOException {
+        int[] slots = new int[EXPORT_BATCH_SIZE];
+        int count = 0;
+        int polled;
+        while ((polled = mBuffer.poll(slots.length, slots)) > 0) {
+            int i = 0;
+            try {
+                for (; i < polled; i++) {
+                    out.append(mBuffer.get(slots[i]));
+                    mBuffer.remove(slots[i]);
+                    count++;
+                }
+            } finally {
+                mBuffer.requeue(slots, i, polled);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the export file if it was kept open, which writes its index
+     */
+    private void closeExportFile() {
+        if (mExportOut == null)
+            return;
+        try {
+            mExportOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close export file", e);
+        }
+        mExportOut = null;
+    }
+
+    /**
+     * Writes all points in a {@link ProbeFile} as if they had just been
+     * written. Probes keep their ids, so a service which tracks ids can drop
+     * the ones it already has. Points are buffered as usual if the writer is
+     * not connected, so large files should be imported once it is.
+     *
+     * @param file
+     * @return the number of points written
+     * @throws IOException
+     */
+    public synchronized int importFile(File file) throws IOException {
+        return importFile(file, false);
+    }
+
+    /**
+     * Like {@link #importFile(File)}, optionally deleting the file afterwards
+     * so its points are not imported again. Points which are still buffered
+     * when the import returns are lost if the process dies before they are
+     * sent.
+     *
+     * @param file
+     * @param consume true to delete the file once all of its points are
+     *            written, unless some of them had to be dropped
+     * @return the number of points written
+     * @throws IOException if the file is the export file and ohmage is not
+     *             installed, since its points would be exported back into it
+     */
+    public synchronized int importFile(File file, boolean consume) throws IOException {
+        if (file.equals(mExportFile)) {
+            if (dataService == null && !connect())
+                throw new IOException("ohmage is not installed, can't import the export file");
+            closeExportFile();
+        }
+
+        ProbeFile in = ProbeFile.open(file);
+        int count = 0;
+        mImporting = file;
+        mImportDropped = false;
+        try {
+            ProbeFile.PointIterator points = in.points();
+            try {
+                while (points.hasNext()) {
+                    write(points.next());
+                    count++;
+                }
+            } finally {
+                points.close();
+            }
+        } finally {
+            mImporting = null;
+            in.close();
+        }
+
+        if (consume && !mImportDropped && !file.delete())
+            throw new IOException("Unable to delete " + file);
+        return count;
+    }
+
+    /**
+     * Sends the point if we are connected, otherwise buffers it until we are.
+     * If the connection drops while sending, the point is buffered and
+     * replayed with the same id once we reconnect, so a service which tracks
+     * ids can drop it if it did make it before the connection dropped. A
+     * point ohmage doesn't accept is buffered and tried again with the next
+     * flush.
+     */
+    private void write(PendingPoint point) {
+        boolean batching = mBatching || mFairShares;
+        if (dataService != null && (batching || !mBuffer.isEmpty())) {
+            // Points still waiting in the buffer go first so each stream
+            // stays in order
+            buffer(point);
+            boolean flush = batching ? mBuffer.size() >= mBatchController.getBatchSize()
+                    : !mFlushScheduled;
+            if (flush)
+                flushBuffer();
+            else
+                scheduleFlush();
+            return;
+        }
+
         if (dataService != null) {
-            dataService.writeResponse(campaignUrn, campaignCreationTimestamp, uploadPriority, data);
+            try {
+                if (!send(point, true)) {
+                    // Try again once ohmage has caught up
+                    buffer(point);
+                    scheduleFlush();
+                }
+                return;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Lost connection while writing, buffering point for replay", e);
+                // Buffer the point before anyone hears about the lost
+                // connection, so whatever they write in response goes behind it
+                buffer(point);
+                lostConnection();
+                reconnect();
+                return;
+            }
+        }
+
+        buffer(point);
+        reconnect();
+    }
+
+    /**
+     * Binds to ohmage so the buffer is replayed once it connects. If ohmage
+     * is not installed the buffer is cleared, after exporting it to the
+     * export file if there is one.
+     */
+    private void reconnect() {
+        if (!connect()) {
+            // No point in buffering data if we can't connect to the service
+            boolean exported = false;
+            if (canExport()) {
+                try {
+                    if (mExportOut == null)
+                        mExportOut = ProbeFile.open(mExportFile);
+                    exportBuffer(mExportOut);
+                    mExportOut.flush();
+                    exported = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export buffered points", e);
+                    closeExportFile();
+                }
+            }
+            if (!exported)
+                onDropped();
+            mBuffer.clear();
+        }
+    }
+
+    private void buffer(PendingPoint point) {
+        int evicted = mBuffer.add(point);
+        if (evicted < 0) {
+            Log.w(TAG, "Point is larger than the buffer, dropping it");
+            onDropped();
         } else {
-            mBuffer.add(new ResponseBuilder(campaignUrn, campaignCreationTimestamp).setData(data)
-                    .setUploadPriority(uploadPriority));
-            if (!connect())
-                mBuffer.clear(); // No point in buffering data if we can't
-                                 // connect to the service
+            logEvicted(evicted);
         }
     }
 
-    public void writeResponse(String campaignUrn, String campaignCreationTimestamp, String data)
+    /**
+     * Sends buffered points in batches until the buffer is empty, the
+     * connection drops, or ohmage stops accepting points. If the connection
+     * drops the rest stay buffered for the next replay.
+     */
+    private void flushBuffer() {
+        long start = System.nanoTime();
+        long sentBefore = mPointsSent;
+        if (mEncoderThreads > 0) {
+            flushPipelined();
+        } else {
+            while (!mBuffer.isEmpty() && dataService != null) {
+                int sent;
+                try {
+                    sent = sendBatch(mBatchController.getBatchSize());
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Lost connection while sending buffered points", e);
+                    lostConnection();
+                    break;
+                }
+                if (sent == 0) {
+                    // Try again once ohmage has caught up
+                    scheduleFlush();
+                    break;
+                }
+            }
+        }
+        if (mPointsSent > sentBefore) {
+            mFlushNanos += System.nanoTime() - start;
+            mFlushedPoints += mPointsSent - sentBefore;
+        }
+
+        if (dataService != null)
+            mEvents.publish(new Event(Event.FLUSHED, mBuffer.size()));
+    }
+
+    /**
+     * Sends buffered points like {@link #flushBuffer()}, but decodes the next
+     * batch on the encoder threads while the current one is in flight, so the
+     * cpu is not idle during the call to ohmage and ohmage is not idle while
+     * the batch is decoded.
+     */
+    private void flushPipelined() {
+        Batch sending = mBatches[0];
+        Batch encoding = mBatches[1];
+        boolean lost = false;
+        try {
+            while (!lost && dataService != null && (sending.count > 0 || !mBuffer.isEmpty())) {
+                if (sending.count == 0) {
+                    take(sending, mBatchController.getBatchSize());
+                    await(encode(sending));
+                }
+
+                Future<?>[] encoded = null;
+                if (!mBuffer.isEmpty()) {
+                    take(encoding, mBatchController.getBatchSize());
+                    encoded = encode(encoding);
+                }
+                try {
+                    sendEncoded(sending);
+                } catch (RemoteException e) {
+                    // Listeners hear about it once both batches are back in
+                    // the buffer
+                    Log.w(TAG, "Lost connection while sending buffered points", e);
+                    lost = true;
+                } finally {
+                    // The arena must not change while it is being decoded
+                    await(encoded);
+                }
+
+                int sent = sending.done;
+                if (sent < sending.count) {
+                    // Put the next batch back first so the points which were
+                    // not sent stay in front of it
+                    finish(encoding);
+                    finish(sending);
+                    if (sent == 0 && !lost) {
+                        // Try again once ohmage has caught up
+                        scheduleFlush();
+                        break;
+                    }
+                    continue;
+                }
+                finish(sending);
+
+                Batch next = encoding;
+                encoding = sending;
+                sending = next;
+            }
+        } finally {
+            finish(encoding);
+            finish(sending);
+        }
+        if (lost)
+            lostConnection();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled)
+            return;
+        if (mHandler == null) {
+            mFlushThread = new HandlerThread("ProbeWriter flush");
+            mFlushThread.start();
+            mHandler = new Handler(mFlushThread.getLooper());
+        }
+        mFlushScheduled = mHandler.postDelayed(mFlushRunnable, mBatchController
+                .getFlushInterval());
+    }
+
+    private void stopFlushThread() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushThread.quit();
+            mHandler = null;
+            mFlushThread = null;
+        }
+        mFlushScheduled = false;
+    }
+
+    /**
+     * Takes up to batchSize points out of the buffer in fair order and sends
+     * them, removing the ones ohmage received. Points which were not sent go
+     * back to the front of their queues.
+     *
+     * @return the number of points removed from the buffer
+     */
+    private int sendBatch(int batchSize) throws RemoteException {
+        Batch batch = mBatches[0];
+        take(batch, batchSize);
+        try {
+            decode(batch, 0, batch.count);
+            sendEncoded(batch);
+            return batch.done;
+        } finally {
+            finish(batch);
+        }
+    }
+
+    /**
+     * Takes up to batchSize points out of the buffer into the batch
+     */
+    private void take(Batch batch, int batchSize) {
+        batch.ensureCapacity(batchSize);
+        batch.count = mBuffer.poll(batchSize, batch.slots);
+        batch.done = 0;
+    }
+
+    /**
+     * Decodes the points of the batch on the encoder threads. Each thread
+     * decodes a range of the batch into the same positions, so the points of
+     * every stream keep their order.
+     *
+     * @return the tasks decoding the batch
+     */
+    private Future<?>[] encode(final Batch batch) {
+        if (mEncoders == null)
+            mEncoders = Executors.newFixedThreadPool(mEncoderThreads, ENCODER_THREAD_FACTORY);
+
+        int tasks = Math.max(1, Math.min(mEncoderThreads, batch.count / MIN_ENCODE_RUN));
+        Future<?>[] futures = new Future<?>[tasks];
+        for (int t = 0; t < tasks; t++) {
+            final int from = batch.count * t / tasks;
+            final int to = batch.count * (t + 1) / tasks;
+            futures[t] = mEncoders.submit(new Runnable() {
+                @Override
+                public void run() {
+                    decode(batch, from, to);
+                }
+            });
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for the tasks decoding a batch to finish
+     */
+    private static void await(Future<?>[] futures) {
+        if (futures == null)
+            return;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Unable to decode buffered points", e.getCause());
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void decode(Batch batch, int from, int to) {
+        for (int i = from; i < to; i++)
+            batch.points[i] = mBuffer.get(batch.slots[i]);
+    }
+
+    /**
+     * Sends the decoded points of the batch, counting the ones which are done
+     * with in {@link Batch#done}. Runs of probes on streams with handles
+     * share a call, anything else is sent by itself. A point ohmage refuses
+     * ends the batch, and once it has been refused {@link #MAX_REFUSALS}
+     * times it is exported or dropped instead.
+     */
+    private void sendEncoded(Batch batch) throws RemoteException {
+        PendingPoint[] points = batch.points;
+        int count = batch.count;
+        while (batch.done < count) {
+            int done = batch.done;
+            int[] handles = new int[count - done];
+            int run = 0;
+            while (done + run < count) {
+                PendingPoint point = points[done + run];
+                if (point.getType() != PendingPoint.TYPE_PROBE)
+                    break;
+                int handle = streamHandle(streamKey(point), point);
+                if (handle <= 0)
+                    break;
+                handles[run++] = handle;
+            }
+
+            boolean received;
+            if (run > 1) {
+                int sent = sendRun(points, done, run, handles);
+                batch.done += sent;
+                if (sent == run)
+                    continue;
+                // The service may have forgotten the handle, register it again
+                // next time and send the first refused probe by name
+                done = batch.done;
+                mStreamHandles.remove(streamKey(points[done]));
+                received = send(points[done], false);
+            } else {
+                received = send(points[done], true);
+            }
+
+            if (!received) {
+                // Try again with the next flush
+                if (mBuffer.refuse(batch.slots[done]) < MAX_REFUSALS)
+                    break;
+                dropRefused(points[done]);
+            }
+            batch.done++;
+        }
+    }
+
+    /**
+     * Exports a point ohmage keeps refusing if there is an export file,
+     * otherwise drops it
+     */
+    private void dropRefused(PendingPoint point) {
+        if (canExport()) {
+            try {
+                if (mExportOut == null)
+                    mExportOut = ProbeFile.open(mExportFile);
+                mExportOut.append(point);
+                mExportOut.flush();
+                Log.w(TAG, "ohmage refused a point " + MAX_REFUSALS + " times, exported it");
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to export refused point", e);
+                closeExportFile();
+            }
+        }
+        Log.w(TAG, "ohmage refused a point " + MAX_REFUSALS + " times, dropping it");
+        onDropped();
+    }
+
+    /**
+     * @return true if there is an export file and it is not being imported
+     */
+    private boolean canExport() {
+        return mExportFile != null && !mExportFile.equals(mImporting);
+    }
+
+    private void onDropped() {
+        if (mImporting != null)
+            mImportDropped = true;
+    }
+
+    /**
+     * Removes the points of the batch which are done with from the buffer
+     * and puts the rest back at the front of their queues
+     */
+    private void finish(Batch batch) {
+        for (int i = 0; i < batch.done; i++) {
+            mBuffer.remove(batch.slots[i]);
+        }
+        mBuffer.requeue(batch.slots, batch.done, batch.count);
+        for (int i = 0; i < batch.count; i++)
+            batch.points[i] = null;
+        batch.count = 0;
+        batch.done = 0;
+    }
+
+    /**
+     * Sends a run of probes with stream handles in one call
+     *
+     * @return the number of probes ohmage received, from the start of the run
+     */
+    private int sendRun(PendingPoint[] points, int from, int count, int[] handles)
             throws RemoteException {
-        writeResponse(campaignUrn, campaignCreationTimestamp, DEFAULT_UPLOAD_PRIORITY, data);
+        int[] batchHandles = new int[count];
+        int[] priorities = new int[count];
+        String[] metadata = new String[count];
+        String[] data = new String[count];
+        for (int i = 0; i < count; i++) {
+            PendingPoint point = points[from + i];
+            batchHandles[i] = handles[i];
+            priorities[i] = point.getUploadPriority();
+            metadata[i] = point.getMetadata();
+            data[i] = point.getData();
+        }
+
+        long start = System.nanoTime();
+        int received = dataService.writeProbeBatch(batchHandles, priorities, metadata, data);
+        onTransaction(count, received, System.nanoTime() - start);
+
+        return Math.max(0, Math.min(received, count));
+    }
+
+    /**
+     * @param useHandle false to send a probe with its full observer and stream
+     *            even if it has a stream handle
+     * @return true if ohmage received the point
+     */
+    private boolean send(PendingPoint point, boolean useHandle) throws RemoteException {
+        long start = System.nanoTime();
+        boolean received;
+        if (point.getType() == PendingPoint.TYPE_PROBE)
+            received = useHandle ? sendProbe(point) : writeProbe(point);
+        else
+            received = dataService.writeResponse(point.getObserverId(), point.getStreamId(),
+                    point.getUploadPriority(), point.getData());
+        onTransaction(1, received ? 1 : 0, System.nanoTime() - start);
+        return received;
+    }
+
+    private void onTransaction(int points, int received, long latencyNanos) {
+        mTransactions++;
+        mPointsSent += Math.max(0, received);
+        mBatchController.onTransaction(points, latencyNanos);
+    }
+
+    /**
+     * Sends the probe by stream handle if the service supports it, otherwise
+     * with its full observer and stream
+     */
+    private boolean sendProbe(PendingPoint point) throws RemoteException {
+        String key = streamKey(point);
+        int handle = streamHandle(key, point);
+        if (handle > 0) {
+            if (dataService.writeProbeToStream(handle, point.getUploadPriority(),
+                    point.getMetadata(), point.getData()))
+                return true;
+            // The service forgot the handle, register it again next time
+            mStreamHandles.remove(key);
+        }
+        return writeProbe(point);
+    }
+
+    private boolean writeProbe(PendingPoint point) throws RemoteException {
+        return dataService.writeProbe(point.getObserverId(), point.getObserverVersion(),
+                point.getStreamId(), point.getStreamVersion(), point.getUploadPriority(),
+                point.getMetadata(), point.getData());
+    }
+
+    /**
+     * Gets the handle for the stream of the point, registering the stream if
+     * this is the first point written to it on this connection. Services
+     * which predate stream handles answer registerStream with 0.
+     *
+     * @return the handle, or 0 if handles are not supported
+     */
+    private int streamHandle(String key, PendingPoint point) throws RemoteException {
+        if (!mStreamHandlesSupported)
+            return 0;
+
+        Integer handle = mStreamHandles.get(key);
+        if (handle == null) {
+            handle = dataService.registerStream(point.getObserverId(),
+                    point.getObserverVersion(), point.getStreamId(), point.getStreamVersion());
+            if (handle <= 0) {
+                mStreamHandlesSupported = false;
+                return 0;
+            }
+            mStreamHandles.put(key, handle);
+        }
+        return handle;
+    }
+
+    private static String streamKey(PendingPoint point) {
+        return point.getObserverId() + "\u0000" + point.getObserverVersion() + "\u0000"
+                + point.getStreamId() + "\u0000" + point.getStreamVersion();
+    }
+
+    private void shutdownEncoders() {
+        if (mEncoders != null) {
+            mEncoders.shutdown();
+            mEncoders = null;
+        }
+    }
+
+    private void logEvicted(int evicted) {
+        if (evicted > 0) {
+            Log.w(TAG, "Buffer full, dropped " + evicted + " oldest points");
+            onDropped();
+        }
     }
 
     public interface Builder {
@@ -0,0 +1,260 @@
+
+package org.ohmage.probemanager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A bounded cache of the most recent probes written to each stream, so an app
+ * can show the latest values of its own streams without keeping a copy of the
+ * data or asking ohmage for it. Set it on a writer with
+ * {@link ProbeWriter#setRecentPoints(RecentPoints)}.
+ * <p>
+ * Each stream keeps at most a number of points, points older than the maximum
+ * age are dropped, and once all streams together take more than the maximum
+ * bytes the oldest points are dropped first. Reads never block writes: they
+ * walk the points of a stream without taking a lock and may or may not see
+ * points added or dropped while they do.
+ */
+public class RecentPoints {
+
+    public static final int DEFAULT_MAX_POINTS_PER_STREAM = 100;
+
+    public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000;
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final int mMaxPointsPerStream;
+
+    private final long mMaxAge;
+
+    private final long mMaxBytes;
+
+    private final ConcurrentHashMap<String, Stream> mStreams = new ConcurrentHashMap<String, Stream>();
+
+    /**
+     * All cached points, oldest first, used to find the oldest point of all
+     * streams. Points dropped from the middle are only marked and are skipped
+     * when they reach the front. Only touched while holding the lock.
+     */
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+
+    /**
+     * Number of points in {@link #mEntries} which were already dropped
+     */
+    private int mDropped;
+
+    private volatile int mCount;
+
+    private volatile long mBytes;
+
+    private static class Stream {
+
+        final String key;
+
+        /**
+         * Points of the stream, oldest first
+         */
+        final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+        /**
+         * Number of entries, only touched while holding the lock
+         */
+        int count;
+
+        Stream(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class Entry {
+
+        final PendingPoint point;
+
+        final Stream stream;
+
+        final long bytes;
+
+        boolean dropped;
+
+        Entry(PendingPoint point, Stream stream, long bytes) {
+            this.point = point;
+            this.stream = stream;
+            this.bytes = bytes;
+        }
+    }
+
+    public RecentPoints() {
+        this(DEFAULT_MAX_POINTS_PER_STREAM, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxPointsPerStream most points kept for each stream
+     * @param maxAge longest time in milliseconds a point is kept, measured
+     *            from its time
+     * @param maxBytes most bytes of points kept for all streams together
+     */
+    public RecentPoints(int maxPointsPerStream, long maxAge, long maxBytes) {
+        if (maxPointsPerStream <= 0)
+            throw new IllegalArgumentException("maxPointsPerStream must be positive");
+        if (maxAge <= 0)
+            throw new IllegalArgumentException("maxAge must be positive");
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        mMaxPointsPerStream = maxPointsPerStream;
+        mMaxAge = maxAge;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a probe to the cache of its stream, dropping the points which no
+     * longer fit. Responses are not cached.
+     *
+     * @param point
+     */
+    public synchronized void add(PendingPoint point) {
+        if (point.getType() != PendingPoint.TYPE_PROBE)
+            return;
+        long bytes = PendingArena.encodedLength(point);
+        if (bytes > mMaxBytes)
+            return;
+
+        String key = streamKey(point.getObserverId(), point.getStreamId());
+        Stream stream = mStreams.get(key);
+        if (stream == null) {
+            stream = new Stream(key);
+            mStreams.put(key, stream);
+        }
+
+        Entry entry = new Entry(point, stream, bytes);
+        stream.entries.add(entry);
+        stream.count++;
+        mEntries.add(entry);
+        mCount++;
+        mBytes += bytes;
+
+        if (stream.count > mMaxPointsPerStream)
+            drop(stream.entries.peek());
+        while (mBytes > mMaxBytes)
+            drop(oldest());
+        long expired = System.currentTimeMillis() - mMaxAge;
+        Entry oldest;
+        while ((oldest = oldest()) != null && oldest.point.getTime() < expired)
+            drop(oldest);
+
+        if (mDropped > mCount) {
+            // Too many dropped points waiting to reach the front
+            for (Iterator<Entry> i = mEntries.iterator(); i.hasNext();) {
+                if (i.next().dropped)
+                    i.remove();
+            }
+            mDropped = 0;
+        }
+    }
+
+    /**
+     * Gets the cached points of a stream with a time in the range, oldest
+     * first
+     *
+     * @param observerId
+     * @param streamId
+     * @param from earliest time in milliseconds, inclusive
+     * @param to latest time in milliseconds, exclusive
+     * @return the points, which may be empty
+     */
+    public List<PendingPoint> query(String observerId, String streamId, long from, long to) {
+        ArrayList<PendingPoint> points = new ArrayList<PendingPoint>();
+        Stream stream = mStreams.get(streamKey(observerId, streamId));
+        if (stream == null)
+            return points;
+
+        long oldest = System.currentTimeMillis() - mMaxAge;
+        for (Iterator<Entry> i = stream.entries.iterator(); i.hasNext();) {
+            PendingPoint point = i.next().point;
+            long time = point.getTime();
+            if (time >= from && time < to && time >= oldest)
+                points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Gets all cached points of a stream, oldest first
+     *
+     * @param observerId
+     * @param streamId
+     * @return the points, which may be empty
+     */
+    public List<PendingPoint> query(String observerId, String streamId) {
+        return query(observerId, streamId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param observerId
+     * @param streamId
+     * @return the last point written to the stream, or null if none is cached
+     */
+    public PendingPoint latest(String observerId, String streamId) {
+        List<PendingPoint> points = query(observerId, streamId);
+        return points.isEmpty() ? null : points.get(points.size() - 1);
+    }
+
+    /**
+     * @return the number of points cached for all streams
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the bytes taken by the points cached for all streams
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized void clear() {
+        mStreams.clear();
+        mEntries.clear();
+        mDropped = 0;
+        mCount = 0;
+        mBytes = 0;
+    }
+
+    /**
+     * @return the oldest point of all streams, or null if there are none
+     */
+    private Entry oldest() {
+        Entry oldest;
+        while ((oldest = mEntries.peek()) != null && oldest.dropped) {
+            mEntries.poll();
+            mDropped--;
+        }
+        return oldest;
+    }
+
+    /**
+     * Drops a point, which must be the oldest of its stream. Points are added
+     * in the order they are written, so a point with an earlier time behind a
+     * newer one is only dropped for its age once it reaches the front, but is
+     * left out of queries already.
+     */
+    private void drop(Entry entry) {
+        entry.stream.entries.poll();
+        entry.stream.count--;
+        entry.dropped = true;
+        mDropped++;
+        mCount--;
+        mBytes -= entry.bytes;
+        if (entry.stream.count == 0)
+            mStreams.remove(entry.stream.key);
+    }
+
+    private static String streamKey(String observerId, String streamId) {
+        return observerId + "\u0000" + streamId;
+    }
+}
@@ -28,6 +28,11 @@ public class ResponseBuilder implements ProbeWriter.Builder {
 
     private static final String UNAVALIABLE_LOCATION = "unavailable";
 
+    /**
+     * Start of the data object when responses are added one at a time
+     */
+    private static final String RESPONSES_START = "{\"responses\":[";
+
     public ResponseBuilder() {
     }
 
@@ -115,6 +120,33 @@ public class ResponseBuilder implements ProbeWriter.Builder {
      */
     private String mResponses;
 
+    /**
+     * Responses added one at a time with
+     * {@link #addPromptResponse(String, String)}. They are written straight
+     * into this buffer after the start of the data object and the responses
+     * array, so they are escaped once and never parsed or copied into another
+     * structure.
+     */
+    private StringBuilder mResponseBuffer;
+
+    /**
+     * True if the next response in the current array needs a leading comma
+     */
+    private boolean mNeedsComma;
+
+    private boolean mInRepeatableSet;
+
+    /**
+     * True while an iteration of the current repeatable set is open
+     */
+    private boolean mIterationOpen;
+
+    /**
+     * True if the next iteration of the current repeatable set needs a
+     * leading comma
+     */
+    private boolean mIterationNeedsComma;
+
     /**
      * Campaign Urn and creation timestamp to specify the campaign
      * 
@@ -289,9 +321,170 @@ public class ResponseBuilder implements ProbeWriter.Builder {
      */
     public ResponseBuilder withResponses(String responses) {
         mResponses = responses;
+        resetResponseBuffer();
+        return this;
+    }
+
+    /**
+     * Adds a prompt response. Responses are streamed into the response array
+     * as they are added, which avoids building up the whole array as a string
+     * for large surveys. Replaces any responses set with
+     * {@link #withResponses(String)}. If a repeatable set has been begun, the
+     * response is added to its current iteration.
+     *
+     * @param promptId
+     * @param value the response, or one of the special values such as
+     *            SKIPPED or NOT_DISPLAYED
+     * @return
+     */
+    public ResponseBuilder addPromptResponse(String promptId, String value) {
+        if (value == null)
+            throw new IllegalArgumentException("Must specify value");
+        startPromptResponse(promptId).append(JSONObject.quote(value)).append('}');
+        return this;
+    }
+
+    /**
+     * Adds a numeric prompt response.
+     *
+     * @param promptId
+     * @param value
+     * @return
+     * @see #addPromptResponse(String, String)
+     */
+    public ResponseBuilder addPromptResponse(String promptId, long value) {
+        startPromptResponse(promptId).append(value).append('}');
         return this;
     }
 
+    /**
+     * Adds a numeric prompt response.
+     *
+     * @param promptId
+     * @param value must be finite
+     * @return
+     * @see #addPromptResponse(String, String)
+     */
+    public ResponseBuilder addPromptResponse(String promptId, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new IllegalArgumentException("value must be finite");
+        String number;
+        try {
+            number = JSONObject.numberToString(value);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("value must be finite");
+        }
+        startPromptResponse(promptId).append(number).append('}');
+        return this;
+    }
+
+    /**
+     * Begins a repeatable set response. Prompt responses added until
+     * {@link #endRepeatableSet()} belong to the first iteration of the set,
+     * and {@link #nextRepeatableSetIteration()} starts the next one.
+     *
+     * @param repeatableSetId
+     * @return
+     */
+    public ResponseBuilder beginRepeatableSet(String repeatableSetId) {
+        if (mInRepeatableSet)
+            throw new IllegalStateException("Repeatable sets can't be nested");
+        if (repeatableSetId == null)
+            throw new IllegalArgumentException("Must specify repeatableSetId");
+        StringBuilder responses = startResponse();
+        responses.append("{\"repeatable_set_id\":").append(JSONObject.quote(repeatableSetId))
+                .append(",\"skipped\":\"false\",\"not_displayed\":\"false\",\"responses\":[");
+        mInRepeatableSet = true;
+        mIterationOpen = false;
+        mIterationNeedsComma = false;
+        return this;
+    }
+
+    /**
+     * Starts the next iteration of the current repeatable set. Iterations
+     * without any prompt responses are left out.
+     *
+     * @return
+     */
+    public ResponseBuilder nextRepeatableSetIteration() {
+        if (!mInRepeatableSet)
+            throw new IllegalStateException("No repeatable set has been begun");
+        closeIteration();
+        return this;
+    }
+
+    /**
+     * Ends the current repeatable set
+     *
+     * @return
+     */
+    public ResponseBuilder endRepeatableSet() {
+        if (!mInRepeatableSet)
+            throw new IllegalStateException("No repeatable set has been begun");
+        closeIteration();
+        mResponseBuffer.append("]}");
+        mInRepeatableSet = false;
+        mNeedsComma = true;
+        return this;
+    }
+
+    /**
+     * Starts a prompt response object, up to the value
+     */
+    private StringBuilder startPromptResponse(String promptId) {
+        if (promptId == null)
+            throw new IllegalArgumentException("Must specify promptId");
+
+        StringBuilder responses;
+        if (mInRepeatableSet) {
+            responses = mResponseBuffer;
+            if (!mIterationOpen) {
+                if (mIterationNeedsComma)
+                    responses.append(',');
+                responses.append('[');
+                mIterationOpen = true;
+                mNeedsComma = false;
+            }
+            if (mNeedsComma)
+                responses.append(',');
+            mNeedsComma = true;
+        } else {
+            responses = startResponse();
+        }
+        return responses.append("{\"prompt_id\":").append(JSONObject.quote(promptId)).append(
+                ",\"value\":");
+    }
+
+    /**
+     * Gets the buffer ready for the next top level response
+     */
+    private StringBuilder startResponse() {
+        if (mResponseBuffer == null) {
+            mResponseBuffer = new StringBuilder().append(RESPONSES_START);
+            mResponses = null;
+        }
+        if (mNeedsComma)
+            mResponseBuffer.append(',');
+        mNeedsComma = true;
+        return mResponseBuffer;
+    }
+
+    private void closeIteration() {
+        if (mIterationOpen) {
+            mResponseBuffer.append(']');
+            mIterationOpen = false;
+            mIterationNeedsComma = true;
+        }
+    }
+
+    private void resetResponseBuffer() {
+        mResponseBuffer = null;
+        mNeedsComma = false;
+        mInRepeatableSet = false;
+        mIterationOpen = false;
+        mIterationNeedsComma = false;
+    }
+
     /**
      * Clear all data from this response
      * 
@@ -310,6 +503,7 @@ public class ResponseBuilder implements ProbeWriter.Builder {
         mLocationTimezone = null;
         mSurveyLaunchContext = null;
         mResponses = null;
+        resetResponseBuffer();
         return this;
     }
 
@@ -320,6 +514,8 @@ public class ResponseBuilder implements ProbeWriter.Builder {
     }
 
     private void setupWrite() {
+        if (mInRepeatableSet)
+            throw new RuntimeException("Repeatable set was not ended");
         buildData();
         if (TextUtils.isEmpty(mData))
             throw new RuntimeException("Must specify data");
@@ -353,15 +549,37 @@ public class ResponseBuilder implements ProbeWriter.Builder {
                 data.put("survey_launch_context", new JSONObject(mSurveyLaunchContext));
             if (mResponses != null)
                 data.put("responses", new JSONArray(mResponses));
-            if (data.length() > 0) {
+            if (data.length() > 0 || mResponseBuffer != null) {
                 // If we set the data to something, we can set the location status
                 // This is only set if other fields are set to avoid overwriting the data
                 if (mLocationStatus != null)
                     data.put("location_status", mLocationStatus);
-                mData = data.toString();
+                mData = mResponseBuffer != null ? spliceResponses(data.toString()) : data
+                        .toString();
             }
         } catch (JSONException e) {
             Log.e(TAG, "JSON format exception");
         }
     }
+
+    /**
+     * Adds the rest of the data object after the streamed responses. The
+     * buffer already starts the object with the responses, so the other
+     * fields are appended to it and cut off again so more responses can
+     * still be added.
+     *
+     * @param data the data object without responses
+     * @return the data object with responses
+     */
+    private String spliceResponses(String data) {
+        int bufferLength = mResponseBuffer.length();
+        mResponseBuffer.append(']');
+        if (data.length() > 2)
+            mResponseBuffer.append(',').append(data, 1, data.length());
+        else
+            mResponseBuffer.append('}');
+        String result = mResponseBuffer.toString();
+        mResponseBuffer.setLength(bufferLength);
+        return result;
+    }
 }
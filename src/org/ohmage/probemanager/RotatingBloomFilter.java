@@ -0,0 +1,137 @@
+
+package org.ohmage.probemanager;
+
+import java.util.BitSet;
+
+/**
+ * A bounded bloom filter of point ids. Ids are added to the current
+ * generation, and once that generation holds its capacity the previous one is
+ * dropped and a new one is started. Memory stays fixed no matter how many ids
+ * are added, while the most recent ids are always remembered.
+ * <p>
+ * {@link #mightContain(String)} never returns false for an id added during the
+ * current or previous generation, but may return true for an id which was
+ * never added at roughly the configured false positive rate.
+ */
+public class RotatingBloomFilter {
+
+    /**
+     * Number of ids held by each generation by default
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Default chance that an id which was never added is reported as seen
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.0001;
+
+    private final int mCapacity;
+
+    private final int mBits;
+
+    private final int mHashes;
+
+    private BitSet mCurrent;
+
+    private BitSet mPrevious;
+
+    private int mCount;
+
+    public RotatingBloomFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @param capacity number of ids each generation holds before rotating
+     * @param falsePositiveRate chance that an id which was never added is
+     *            reported as seen, while a generation is not yet full
+     */
+    public RotatingBloomFilter(int capacity, double falsePositiveRate) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+
+        double ln2 = Math.log(2);
+        mCapacity = capacity;
+        mBits = (int) Math.max(64, Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        mHashes = (int) Math.max(1, Math.round((double) mBits / capacity * ln2));
+        mCurrent = new BitSet(mBits);
+        mPrevious = new BitSet(mBits);
+    }
+
+    /**
+     * Remembers the given id
+     *
+     * @param id
+     */
+    public synchronized void put(String id) {
+        if (mCount >= mCapacity) {
+            BitSet recycled = mPrevious;
+            recycled.clear();
+            mPrevious = mCurrent;
+            mCurrent = recycled;
+            mCount = 0;
+        }
+
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < mHashes; i++) {
+            mCurrent.set(index(h1, h2, i));
+        }
+        mCount++;
+    }
+
+    /**
+     * Checks if the given id might have been added to this filter
+     *
+     * @param id
+     * @return false if the id was definitely not added recently, true if it
+     *         probably was
+     */
+    public synchronized boolean mightContain(String id) {
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return contains(mCurrent, h1, h2) || contains(mPrevious, h1, h2);
+    }
+
+    /**
+     * Forgets all ids
+     */
+    public synchronized void clear() {
+        mCurrent.clear();
+        mPrevious.clear();
+        mCount = 0;
+    }
+
+    private boolean contains(BitSet bits, int h1, int h2) {
+        for (int i = 0; i < mHashes; i++) {
+            if (!bits.get(index(h1, h2, i)))
+                return false;
+        }
+        return true;
+    }
+
+    private int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % mBits;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the id. The two halves are used as independent
+     * hashes for double hashing.
+     */
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // Spread the bits so both halves are usable
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,181 @@
+
+package org.ohmage.probemanager;
+
+import android.text.TextUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A stand-in for the ohmage probe manager service which counts what it
+ * receives instead of storing it. Return it from the onBind of a test service,
+ * or pass it straight to {@link ProbeWriter#onServiceConnected} to exercise a
+ * probe without ohmage installed.
+ * <p>
+ * Probes with an id which was already received are acknowledged but not
+ * counted again, so replays from the {@link ProbeWriter} can be checked for
+ * duplicates.
+ */
+public class StandInProbeManager extends IProbeManager.Stub {
+
+    private final RotatingBloomFilter mReceived = new RotatingBloomFilter();
+
+    /**
+     * Registered streams, the handle of each being its index plus one
+     */
+    private final ArrayList<Stream> mStreams = new ArrayList<Stream>();
+
+    private final HashMap<String, Integer> mStreamHandles = new HashMap<String, Integer>();
+
+    private static class Stream {
+        final String observerId;
+        final int observerVersion;
+        final String streamId;
+        final int streamVersion;
+
+        Stream(String observerId, int observerVersion, String streamId, int streamVersion) {
+            this.observerId = observerId;
+            this.observerVersion = observerVersion;
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+        }
+    }
+
+    private int mProbeCount;
+
+    private int mResponseCount;
+
+    private int mDuplicateCount;
+
+    private long mCallLatencyNanos;
+
+    @Override
+    public synchronized boolean writeProbe(String observerId, int observerVersion,
+            String streamId, int streamVersion, int uploadPriority, String metadata, String data) {
+        simulateLatency();
+        return receiveProbe(metadata);
+    }
+
+    private boolean receiveProbe(String metadata) {
+        String id = null;
+        if (!TextUtils.isEmpty(metadata)) {
+            try {
+                id = new JSONObject(metadata).optString("id", null);
+            } catch (JSONException e) {
+                return false;
+            }
+        }
+
+        if (!TextUtils.isEmpty(id)) {
+            if (mReceived.mightContain(id)) {
+                mDuplicateCount++;
+                return true;
+            }
+            mReceived.put(id);
+        }
+
+        mProbeCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized int registerStream(String observerId, int observerVersion,
+            String streamId, int streamVersion) {
+        String key = observerId + "\u0000" + observerVersion + "\u0000" + streamId + "\u0000"
+                + streamVersion;
+        Integer handle = mStreamHandles.get(key);
+        if (handle == null) {
+            mStreams.add(new Stream(observerId, observerVersion, streamId, streamVersion));
+            handle = mStreams.size();
+            mStreamHandles.put(key, handle);
+        }
+        return handle;
+    }
+
+    @Override
+    public synchronized boolean writeProbeToStream(int streamHandle, int uploadPriority,
+            String metadata, String data) {
+        simulateLatency();
+        return isRegistered(streamHandle) && receiveProbe(metadata);
+    }
+
+    @Override
+    public synchronized int writeProbeBatch(int[] streamHandles, int[] uploadPriorities,
+            String[] metadata, String[] data) {
+        simulateLatency();
+        for (int i = 0; i < streamHandles.length; i++) {
+            if (!isRegistered(streamHandles[i]) || !receiveProbe(metadata[i]))
+                return i;
+        }
+        return streamHandles.length;
+    }
+
+    @Override
+    public synchronized boolean writeResponse(String campaignUrn,
+            String campaignCreationTimestamp, int uploadPriority, String data) {
+        simulateLatency();
+        mResponseCount++;
+        return true;
+    }
+
+    /**
+     * Makes each call take at least the given time, to stand in for the cost
+     * of a binder transaction when measuring a writer
+     *
+     * @param nanos
+     */
+    public synchronized void setCallLatency(long nanos) {
+        mCallLatencyNanos = nanos;
+    }
+
+    /**
+     * @return the number of distinct probes received
+     */
+    public synchronized int getProbeCount() {
+        return mProbeCount;
+    }
+
+    /**
+     * @return the number of responses received
+     */
+    public synchronized int getResponseCount() {
+        return mResponseCount;
+    }
+
+    /**
+     * @return the number of probes which were dropped because their id had
+     *         already been received
+     */
+    public synchronized int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    private boolean isRegistered(int streamHandle) {
+        return streamHandle > 0 && streamHandle <= mStreams.size();
+    }
+
+    private void simulateLatency() {
+        if (mCallLatencyNanos <= 0)
+            return;
+        try {
+            Thread.sleep(mCallLatencyNanos / 1000000, (int) (mCallLatencyNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forgets everything which was received
+     */
+    public synchronized void clear() {
+        mReceived.clear();
+        mStreams.clear();
+        mStreamHandles.clear();
+        mProbeCount = 0;
+        mResponseCount = 0;
+        mDuplicateCount = 0;
+    }
+}
@@ -0,0 +1,145 @@
+
+package org.ohmage.probemanager;
+
+/**
+ * A snapshot of what a {@link ProbeWriter} has done and the decisions of its
+ * {@link BatchController}, for tuning the writer on a class of devices.
+ */
+public class WriterMetrics {
+
+    private final long mPointsSent;
+
+    private final long mTransactions;
+
+    private final int mBufferedCount;
+
+    private final long mBufferedBytes;
+
+    private final double mPointsPerSecond;
+
+    private final int mBatchSize;
+
+    private final long mFlushInterval;
+
+    private final long mTargetLatency;
+
+    private final long mAverageLatencyNanos;
+
+    private final long mLastLatencyNanos;
+
+    private final int mBatchIncreases;
+
+    private final int mBatchDecreases;
+
+    WriterMetrics(long pointsSent, long transactions, int bufferedCount, long bufferedBytes,
+            double pointsPerSecond, BatchController controller) {
+        mPointsSent = pointsSent;
+        mTransactions = transactions;
+        mBufferedCount = bufferedCount;
+        mBufferedBytes = bufferedBytes;
+        mPointsPerSecond = pointsPerSecond;
+        mBatchSize = controller.getBatchSize();
+        mFlushInterval = controller.getFlushInterval();
+        mTargetLatency = controller.getTargetLatency();
+        mAverageLatencyNanos = controller.getAverageLatencyNanos();
+        mLastLatencyNanos = controller.getLastLatencyNanos();
+        mBatchIncreases = controller.getIncreases();
+        mBatchDecreases = controller.getDecreases();
+    }
+
+    /**
+     * @return the number of points ohmage has received from the writer
+     */
+    public long getPointsSent() {
+        return mPointsSent;
+    }
+
+    /**
+     * @return the number of calls made to ohmage
+     */
+    public long getTransactions() {
+        return mTransactions;
+    }
+
+    /**
+     * @return the number of points waiting to be sent
+     */
+    public int getBufferedCount() {
+        return mBufferedCount;
+    }
+
+    /**
+     * @return the bytes taken by points waiting to be sent
+     */
+    public long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    /**
+     * @return the sustained rate at which buffered points were sent, counting
+     *         only the time spent flushing
+     */
+    public double getPointsPerSecond() {
+        return mPointsPerSecond;
+    }
+
+    /**
+     * @return the batch size chosen for the next call
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * @return the flush interval in milliseconds chosen for the next batch
+     */
+    public long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    /**
+     * @return the target latency of a single call in milliseconds
+     */
+    public long getTargetLatency() {
+        return mTargetLatency;
+    }
+
+    /**
+     * @return the smoothed latency of calls in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        return mAverageLatencyNanos;
+    }
+
+    /**
+     * @return the latency of the last call in nanoseconds
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * @return the number of times the batch size was increased
+     */
+    public int getBatchIncreases() {
+        return mBatchIncreases;
+    }
+
+    /**
+     * @return the number of times the batch size was decreased
+     */
+    public int getBatchDecreases() {
+        return mBatchDecreases;
+    }
+
+    @Override
+    public String toString() {
+        return "WriterMetrics [pointsSent=" + mPointsSent + ", transactions=" + mTransactions
+                + ", bufferedCount=" + mBufferedCount + ", bufferedBytes=" + mBufferedBytes
+                + ", pointsPerSecond=" + mPointsPerSecond + ", batchSize=" + mBatchSize + ", flushInterval=" + mFlushInterval
+                + ", targetLatency=" + mTargetLatency + ", averageLatencyNanos="
+                + mAverageLatencyNanos + ", lastLatencyNanos=" + mLastLatencyNanos
+                + ", batchIncreases=" + mBatchIncreases + ", batchDecreases=" + mBatchDecreases
+                + "]";
+    }
+}
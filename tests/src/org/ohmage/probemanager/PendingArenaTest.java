@@ -0,0 +1,110 @@
+
+package org.ohmage.probemanager;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class PendingArenaTest extends TestCase {
+
+    public void testRoundTrip() {
+        PendingArena arena = new PendingArena(1024, 4);
+        PendingPoint probe = PendingPoint.probe("o", 1, "s", 2, 3, "{\"id\":\"a\"}",
+                "{\"v\":\"é中😀\"}", "a", 1234);
+        PendingPoint response = PendingPoint.response("urn", "ts", 0, "[]", 5678);
+
+        int probeSlot = arena.add(probe);
+        int responseSlot = arena.add(response);
+        assertEquals(2, arena.size());
+        assertEquals(PendingArena.encodedLength(probe) + PendingArena.encodedLength(response),
+                arena.getBytesUsed());
+        ProbeFileTest.assertPointEquals(probe, arena.get(probeSlot));
+        ProbeFileTest.assertPointEquals(response, arena.get(responseSlot));
+        assertEquals(PendingArena.encodedLength(probe), arena.length(probeSlot));
+    }
+
+    public void testFull() {
+        PendingArena arena = new PendingArena(1024, 2);
+        assertTrue(arena.add(point(0, 10)) >= 0);
+        assertTrue(arena.add(point(1, 10)) >= 0);
+        assertEquals(-1, arena.add(point(2, 10)));
+
+        arena = new PendingArena(200, 10);
+        assertEquals(-1, arena.add(point(0, 300)));
+        assertTrue(arena.isEmpty());
+    }
+
+    public void testRemovedSlotIsEmpty() {
+        PendingArena arena = new PendingArena(1024, 4);
+        int slot = arena.add(point(0, 10));
+        arena.remove(slot);
+        assertTrue(arena.isEmpty());
+        assertEquals(0, arena.getBytesUsed());
+        try {
+            arena.get(slot);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Adds and removes points in random order so records have to be
+     * compacted many times, checking every point survives unchanged
+     */
+    public void testChurn() {
+        Random random = new Random(42);
+        PendingArena arena = new PendingArena(8192, 64);
+        Map<Integer, PendingPoint> live = new HashMap<Integer, PendingPoint>();
+        long bytes = 0;
+
+        for (int i = 0; i < 20000; i++) {
+            if (random.nextInt(3) != 0) {
+                PendingPoint point = point(i, random.nextInt(400));
+                long length = PendingArena.encodedLength(point);
+                boolean room = arena.hasRoomFor(length);
+                int slot = arena.add(point);
+                assertEquals(room, slot >= 0);
+                if (slot >= 0) {
+                    assertNull(live.put(slot, point));
+                    bytes += length;
+                }
+            } else if (!live.isEmpty()) {
+                List<Integer> slots = new ArrayList<Integer>(live.keySet());
+                int slot = slots.get(random.nextInt(slots.size()));
+                bytes -= arena.length(slot);
+                arena.remove(slot);
+                live.remove(slot);
+            }
+
+            assertEquals(live.size(), arena.size());
+            assertEquals(bytes, arena.getBytesUsed());
+            if (i % 100 == 0) {
+                for (Map.Entry<Integer, PendingPoint> entry : live.entrySet())
+                    ProbeFileTest.assertPointEquals(entry.getValue(), arena.get(entry.getKey()));
+            }
+        }
+    }
+
+    public void testClear() {
+        PendingArena arena = new PendingArena(1024, 4);
+        for (int i = 0; i < 4; i++)
+            arena.add(point(i, 10));
+        arena.clear();
+        assertTrue(arena.isEmpty());
+        assertEquals(0, arena.getBytesUsed());
+        assertTrue(arena.add(point(5, 10)) >= 0);
+    }
+
+    static PendingPoint point(int i, int size) {
+        StringBuilder data = new StringBuilder("{\"v\":\"");
+        for (int j = 0; j < size; j++)
+            data.append((char) ('a' + j % 26));
+        data.append("\"}");
+        return PendingPoint.probe("o" + (i % 3), 1, "s", 1, 0, null, data.toString(), "" + i, i);
+    }
+}
@@ -0,0 +1,239 @@
+
+package org.ohmage.probemanager;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PendingQueueTest extends TestCase {
+
+    public void testOrderPerObserver() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        for (int i = 0; i < 300; i++)
+            queue.add(point("o" + (i % 3), i, 10));
+
+        int[] last = new int[] {
+                -1, -1, -1
+        };
+        List<PendingPoint> points = pollAll(queue, 7);
+        assertEquals(300, points.size());
+        for (PendingPoint point : points) {
+            int observer = point.getObserverId().charAt(1) - '0';
+            int id = Integer.parseInt(point.getId());
+            assertTrue(id > last[observer]);
+            last[observer] = id;
+        }
+    }
+
+    public void testRequeueKeepsOrder() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        for (int i = 0; i < 20; i++)
+            queue.add(point("o" + (i % 2), i, 10));
+
+        int[] slots = new int[10];
+        int count = queue.poll(10, slots);
+        assertEquals(10, count);
+        List<String> first = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+            first.add(queue.get(slots[i]).getId());
+
+        // Send the first three, put the rest back
+        for (int i = 0; i < 3; i++)
+            queue.remove(slots[i]);
+        queue.requeue(slots, 3, count);
+        assertEquals(17, queue.queued());
+        assertEquals(17, queue.size());
+
+        List<PendingPoint> rest = pollAll(queue, 10);
+        assertEquals(17, rest.size());
+        for (String id : first.subList(0, 3)) {
+            for (PendingPoint point : rest)
+                assertFalse(id.equals(point.getId()));
+        }
+
+        // Each observer's points come back in the order they were written
+        int[] last = new int[] {
+                -1, -1
+        };
+        for (PendingPoint point : rest) {
+            int observer = point.getObserverId().charAt(1) - '0';
+            int id = Integer.parseInt(point.getId());
+            assertTrue(id > last[observer]);
+            last[observer] = id;
+        }
+    }
+
+    public void testRefusalsCountedPerPoint() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1);
+        queue.add(point("o", 0, 10));
+        int[] slots = new int[1];
+        assertEquals(1, queue.poll(1, slots));
+        assertEquals(1, queue.refuse(slots[0]));
+        queue.requeue(slots, 0, 1);
+        assertEquals(1, queue.poll(1, slots));
+        assertEquals(2, queue.refuse(slots[0]));
+        queue.remove(slots[0]);
+
+        // A new point in the same slot starts over
+        queue.add(point("o", 1, 10));
+        assertEquals(1, queue.poll(1, slots));
+        assertEquals(1, queue.refuse(slots[0]));
+    }
+
+    public void testRequeueRefundsDeficit() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        for (int i = 10; i < 60; i++) {
+            queue.add(point("a", i, 100));
+            queue.add(point("b", i, 100));
+        }
+
+        // Take the first observer's whole quantum and put it back
+        int quantum = (int) (1024 / PendingArena.encodedLength(point("a", 10, 100)));
+        int[] slots = new int[quantum];
+        assertEquals(quantum, queue.poll(quantum, slots));
+        List<String> first = new ArrayList<String>();
+        for (int slot : slots)
+            first.add(queue.get(slot).getObserverId() + queue.get(slot).getId());
+        queue.requeue(slots, 0, quantum);
+
+        // It is not charged twice, so the same points come out again
+        assertEquals(quantum, queue.poll(quantum, slots));
+        for (int i = 0; i < quantum; i++)
+            assertEquals(first.get(i), queue.get(slots[i]).getObserverId()
+                    + queue.get(slots[i]).getId());
+    }
+
+    public void testForgetsIdleObservers() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        queue.setWeight("kept", 2);
+        for (int i = 0; i < 100; i++)
+            queue.add(point("o" + i, i, 10));
+        assertEquals(101, queue.observers());
+
+        pollAll(queue, 7);
+        assertEquals(1, queue.observers());
+
+        queue.add(point("o", 0, 10));
+        queue.clear();
+        assertEquals(1, queue.observers());
+    }
+
+    public void testFairShare() {
+        PendingQueue queue = new PendingQueue(1 << 20, 10000);
+        for (int i = 0; i < 1000; i++)
+            queue.add(point("noisy", i, 100));
+        for (int i = 0; i < 10; i++)
+            queue.add(point("quiet", i, 100));
+
+        int[] slots = new int[40];
+        int count = queue.poll(40, slots);
+        int quiet = 0;
+        for (int i = 0; i < count; i++) {
+            if (queue.get(slots[i]).getObserverId().equals("quiet"))
+                quiet++;
+        }
+        assertEquals(10, quiet);
+    }
+
+    public void testWeight() {
+        PendingQueue queue = new PendingQueue(1 << 20, 10000);
+        queue.setWeight("heavy", 3);
+        for (int i = 0; i < 400; i++) {
+            queue.add(point("heavy", i, 100));
+            queue.add(point("light", i, 100));
+        }
+
+        int[] slots = new int[200];
+        int count = queue.poll(200, slots);
+        int heavy = 0;
+        for (int i = 0; i < count; i++) {
+            if (queue.get(slots[i]).getObserverId().equals("heavy"))
+                heavy++;
+        }
+        assertTrue("heavy got " + heavy, heavy >= 140 && heavy <= 160);
+    }
+
+    public void testEvictsLargestShare() {
+        long length = PendingArena.encodedLength(point("noisy", 0, 100));
+
+        PendingQueue queue = new PendingQueue((int) (length * 100), 1000);
+        for (int i = 0; i < 10; i++)
+            queue.add(point("quiet", i, 100));
+        int evicted = 0;
+        for (int i = 0; i < 200; i++)
+            evicted += queue.add(point("noisy", i, 100));
+        assertTrue(evicted > 0);
+
+        int quiet = 0;
+        for (PendingPoint point : pollAll(queue, 50)) {
+            if (point.getObserverId().equals("quiet"))
+                quiet++;
+        }
+        assertEquals(10, quiet);
+    }
+
+    public void testQuota() {
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        long length = PendingArena.encodedLength(point("o", 10, 100));
+        queue.setQuota("o", length * 5);
+        for (int i = 0; i < 20; i++)
+            queue.add(point("o", i, 100));
+
+        List<PendingPoint> points = pollAll(queue, 10);
+        assertEquals(5, points.size());
+        assertEquals("15", points.get(0).getId());
+    }
+
+    public void testRemainingCountsBytes() {
+        long length = PendingArena.encodedLength(point("o", 10, 100));
+        PendingQueue queue = new PendingQueue((int) (length * 20), 1000);
+        for (int i = 10; i < 15; i++)
+            queue.add(point("o", i, 100));
+        assertEquals(15, queue.remaining());
+
+        queue = new PendingQueue(1 << 20, 10);
+        queue.add(point("o", 10, 100));
+        assertEquals(9, queue.remaining());
+    }
+
+    public void testRemainingWithQuota() {
+        long length = PendingArena.encodedLength(point("o", 10, 100));
+        PendingQueue queue = new PendingQueue(1 << 20, 1000);
+        queue.setQuota("o", length * 8);
+        for (int i = 10; i < 13; i++)
+            queue.add(point("o", i, 100));
+        assertEquals(5, queue.remaining("o"));
+        assertEquals(queue.remaining(), queue.remaining("other"));
+    }
+
+    public void testResize() {
+        PendingQueue queue = new PendingQueue(1 << 20, 100);
+        for (int i = 0; i < 50; i++)
+            queue.add(point("o" + (i % 2), i, 10));
+        assertEquals(30, queue.resize(1 << 20, 20));
+        assertEquals(20, queue.size());
+        assertEquals(20, pollAll(queue, 10).size());
+    }
+
+    private static List<PendingPoint> pollAll(PendingQueue queue, int batch) {
+        List<PendingPoint> points = new ArrayList<PendingPoint>();
+        int[] slots = new int[batch];
+        int count;
+        while ((count = queue.poll(batch, slots)) > 0) {
+            for (int i = 0; i < count; i++) {
+                points.add(queue.get(slots[i]));
+                queue.remove(slots[i]);
+            }
+        }
+        return points;
+    }
+
+    private static PendingPoint point(String observerId, int i, int size) {
+        StringBuilder data = new StringBuilder("{\"v\":\"");
+        for (int j = 0; j < size; j++)
+            data.append('x');
+        data.append("\"}");
+        return PendingPoint.probe(observerId, 1, "s", 1, 0, null, data.toString(), "" + i, i);
+    }
+}
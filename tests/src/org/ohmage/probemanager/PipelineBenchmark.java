@@ -0,0 +1,100 @@
+
+package org.ohmage.probemanager;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures how fast a {@link ProbeWriter} replays a backlog to a
+ * {@link StandInProbeManager} with each call costing a fixed latency, with
+ * and without pipelining. The rates are written to the log.
+ */
+public class PipelineBenchmark extends TestCase {
+
+    private static final String TAG = "PipelineBenchmark";
+
+    private static final int POINTS = 20000;
+
+    private static final int BATCH_SIZE = 64;
+
+    private static final long[] CALL_LATENCIES = new long[] {
+            500000, 2000000
+    };
+
+    private static final int[] ENCODER_THREADS = new int[] {
+            0, 1, 2
+    };
+
+    /**
+     * A ~900 byte probe
+     */
+    private static final String DATA;
+
+    static {
+        StringBuilder data = new StringBuilder("{\"v\":[");
+        for (int i = 0; i < 200; i++)
+            data.append(i < 199 ? i + "," : i + "");
+        DATA = data.append("],\"s\":\"é中 abcdefghijklmnop\"}").toString();
+    }
+
+    public void testPointsPerSecond() throws Exception {
+        for (long latency : CALL_LATENCIES) {
+            for (int threads : ENCODER_THREADS) {
+                double pointsPerSecond = replay(threads, latency);
+                Log.i(TAG, String.format("%d threads, %dus per call: %.0f points/sec", threads,
+                        latency / 1000, pointsPerSecond));
+            }
+        }
+    }
+
+    /**
+     * Buffers {@link #POINTS} probes and replays them to a stand-in
+     *
+     * @return the points per second of the replay
+     */
+    private double replay(int encoderThreads, long callLatency) throws Exception {
+        ProbeWriter writer = new ProbeWriter(new UnboundContext());
+        writer.setBufferCapacity(POINTS);
+        writer.setBufferBytes(64 * 1024 * 1024);
+        writer.setBatchController(new BatchController(BATCH_SIZE, BATCH_SIZE, 50, 2000, 1000));
+        writer.setPipelining(encoderThreads);
+
+        StandInProbeManager service = new StandInProbeManager();
+        service.setCallLatency(callLatency);
+
+        for (int i = 0; i < POINTS; i++)
+            writer.write("o" + i % 3, 1, "s" + i % 4, 1, null, DATA);
+        writer.onServiceConnected(null, service);
+
+        assertEquals(0, writer.getBufferedCount());
+        // The stand-in's duplicate filter can mistake a few new ids for old ones
+        assertEquals(POINTS, service.getProbeCount() + service.getDuplicateCount());
+        double pointsPerSecond = writer.getMetrics().getPointsPerSecond();
+        writer.setPipelining(0);
+        return pointsPerSecond;
+    }
+
+    /**
+     * Context which never binds, the stand-in is handed to the writer
+     * directly
+     */
+    private static class UnboundContext extends ContextWrapper {
+
+        UnboundContext() {
+            super(null);
+        }
+
+        @Override
+        public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+            return true;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection conn) {
+        }
+    }
+}
@@ -0,0 +1,221 @@
+
+package org.ohmage.probemanager;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProbeFileTest extends TestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("probes", ".ohpb");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    public void testRoundTrip() throws IOException {
+        List<PendingPoint> points = points(200);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points)
+            out.append(point);
+        out.close();
+
+        ProbeFile in = ProbeFile.open(mFile);
+        try {
+            assertEquals(points.size(), in.size());
+            assertEquals(3, in.getStreams().size());
+            assertEquals(1000, in.getMinTime());
+            assertEquals(1000 + 199 * 10, in.getMaxTime());
+            assertPointsEqual(points, in.readAll());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testAppendToClosedFile() throws IOException {
+        List<PendingPoint> points = points(100);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points.subList(0, 40))
+            out.append(point);
+        out.close();
+
+        out = ProbeFile.open(mFile);
+        for (PendingPoint point : points.subList(40, 100))
+            out.append(point);
+        out.close();
+
+        ProbeFile in = ProbeFile.open(mFile);
+        try {
+            assertEquals(100, in.size());
+            assertPointsEqual(points, in.readAll());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testRecoversUnclosedFile() throws IOException {
+        List<PendingPoint> points = points(50);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points)
+            out.append(point);
+        out.flush();
+
+        // Half an entry, as if the process died while writing it
+        FileOutputStream partial = new FileOutputStream(mFile, true);
+        partial.write(new byte[] {
+                'P', 100, 0, 1, 2
+        });
+        partial.close();
+
+        ProbeFile in = ProbeFile.open(mFile);
+        try {
+            assertEquals(50, in.size());
+            assertPointsEqual(points, in.readAll());
+
+            // The cut off entry is overwritten by the next append
+            PendingPoint extra = PendingPoint.probe("o0", 1, "s0", 1, 0, null, "{}", "extra",
+                    5000);
+            in.append(extra);
+            in.close();
+
+            List<PendingPoint> expected = new ArrayList<PendingPoint>(points);
+            expected.add(extra);
+            in = ProbeFile.open(mFile);
+            assertPointsEqual(expected, in.readAll());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    public void testIgnoresCorruptTrailer() throws IOException {
+        List<PendingPoint> points = points(20);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points)
+            out.append(point);
+        out.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length() - 1);
+        file.write(0);
+        file.close();
+
+        ProbeFile in = ProbeFile.open(mFile);
+        try {
+            assertEquals(20, in.size());
+            assertPointsEqual(points, in.readAll());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testRejectsOtherFiles() throws IOException {
+        FileOutputStream other = new FileOutputStream(mFile);
+        other.write("not a probe file".getBytes("UTF-8"));
+        other.close();
+
+        try {
+            ProbeFile.open(mFile);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testReadRange() throws IOException {
+        List<PendingPoint> points = points(300);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points)
+            out.append(point);
+        out.close();
+
+        ProbeFile in = ProbeFile.open(mFile);
+        try {
+            for (ProbeFile.Stream stream : in.getStreams()) {
+                List<PendingPoint> expected = new ArrayList<PendingPoint>();
+                for (PendingPoint point : points) {
+                    if (point.getObserverId().equals(stream.getObserverId())
+                            && point.getStreamId().equals(stream.getStreamId())
+                            && point.getTime() >= 1500 && point.getTime() <= 2000)
+                        expected.add(point);
+                }
+                assertPointsEqual(expected, in.read(stream, 1500, 2000));
+                assertEquals(0, in.read(stream, 0, 999).size());
+                assertEquals(stream.getCount(), in.read(stream, Long.MIN_VALUE,
+                        Long.MAX_VALUE).size());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testStreamsPoints() throws IOException {
+        List<PendingPoint> points = points(100);
+
+        ProbeFile out = ProbeFile.open(mFile);
+        for (PendingPoint point : points)
+            out.append(point);
+
+        // Unflushed points are included, points appended later are not
+        ProbeFile.PointIterator i = out.points();
+        out.append(PendingPoint.probe("o0", 1, "s0", 1, 0, null, "{}", "later", 0));
+        List<PendingPoint> read = new ArrayList<PendingPoint>();
+        while (i.hasNext())
+            read.add(i.next());
+        i.close();
+        out.close();
+
+        assertPointsEqual(points, read);
+    }
+
+    private static List<PendingPoint> points(int count) {
+        List<PendingPoint> points = new ArrayList<PendingPoint>();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                points.add(PendingPoint.response("urn:campaign", "2012-01-01 00:00:00", 1,
+                        "[{\"i\":" + i + "}]", 1000 + i * 10));
+            } else {
+                points.add(PendingPoint.probe("o" + (i % 2), 2, "s" + (i % 2), 3, i % 3,
+                        "{\"id\":\"" + i + "\"}", "{\"v\":\"é中" + i + "\"}", "" + i,
+                        1000 + i * 10));
+            }
+        }
+        return points;
+    }
+
+    static void assertPointsEqual(List<PendingPoint> expected, List<PendingPoint> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertPointEquals(expected.get(i), actual.get(i));
+    }
+
+    static void assertPointEquals(PendingPoint expected, PendingPoint actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getObserverId(), actual.getObserverId());
+        assertEquals(expected.getObserverVersion(), actual.getObserverVersion());
+        assertEquals(expected.getStreamId(), actual.getStreamId());
+        assertEquals(expected.getStreamVersion(), actual.getStreamVersion());
+        assertEquals(expected.getUploadPriority(), actual.getUploadPriority());
+        assertEquals(expected.getMetadata(), actual.getMetadata());
+        assertEquals(expected.getData(), actual.getData());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTime(), actual.getTime());
+    }
+}
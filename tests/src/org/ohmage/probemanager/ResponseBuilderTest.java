@@ -0,0 +1,148 @@
+
+package org.ohmage.probemanager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+public class ResponseBuilderTest extends TestCase {
+
+    private String mData;
+
+    private ProbeWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        mData = null;
+        mWriter = new ProbeWriter(null) {
+            @Override
+            public synchronized void writeResponse(String campaignUrn,
+                    String campaignCreationTimestamp, int uploadPriority, String data) {
+                mData = data;
+            }
+        };
+    }
+
+    public void testPromptResponses() throws Exception {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.addPromptResponse("text", "a \"quoted\"\n value").addPromptResponse("count", 3)
+                .addPromptResponse("ratio", 0.5);
+
+        JSONArray responses = write(builder).getJSONArray("responses");
+        assertEquals(3, responses.length());
+        assertPrompt(responses.getJSONObject(0), "text", "a \"quoted\"\n value");
+        assertEquals(3, responses.getJSONObject(1).getLong("value"));
+        assertEquals(0.5, responses.getJSONObject(2).getDouble("value"), 0);
+    }
+
+    public void testRepeatableSets() throws Exception {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.addPromptResponse("before", "b");
+        builder.beginRepeatableSet("set").addPromptResponse("p", "1").addPromptResponse("q", 1)
+                .nextRepeatableSetIteration().addPromptResponse("p", "2").endRepeatableSet();
+        builder.beginRepeatableSet("other").addPromptResponse("r", "3").endRepeatableSet();
+        builder.addPromptResponse("after", "a");
+
+        JSONArray responses = write(builder).getJSONArray("responses");
+        assertEquals(4, responses.length());
+        assertPrompt(responses.getJSONObject(0), "before", "b");
+        assertPrompt(responses.getJSONObject(3), "after", "a");
+
+        JSONObject set = responses.getJSONObject(1);
+        assertEquals("set", set.getString("repeatable_set_id"));
+        JSONArray iterations = set.getJSONArray("responses");
+        assertEquals(2, iterations.length());
+        assertEquals(2, iterations.getJSONArray(0).length());
+        assertPrompt(iterations.getJSONArray(0).getJSONObject(0), "p", "1");
+        assertPrompt(iterations.getJSONArray(1).getJSONObject(0), "p", "2");
+
+        JSONObject other = responses.getJSONObject(2);
+        assertEquals(1, other.getJSONArray("responses").length());
+        assertPrompt(other.getJSONArray("responses").getJSONArray(0).getJSONObject(0), "r", "3");
+    }
+
+    public void testEmptyIterationsAreLeftOut() throws Exception {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.beginRepeatableSet("set").nextRepeatableSetIteration().addPromptResponse("p", "1")
+                .nextRepeatableSetIteration().nextRepeatableSetIteration()
+                .addPromptResponse("p", "2").nextRepeatableSetIteration().endRepeatableSet();
+        builder.beginRepeatableSet("empty").endRepeatableSet();
+
+        JSONArray responses = write(builder).getJSONArray("responses");
+        assertEquals(2, responses.length());
+        JSONArray iterations = responses.getJSONObject(0).getJSONArray("responses");
+        assertEquals(2, iterations.length());
+        assertPrompt(iterations.getJSONArray(0).getJSONObject(0), "p", "1");
+        assertPrompt(iterations.getJSONArray(1).getJSONObject(0), "p", "2");
+        assertEquals(0, responses.getJSONObject(1).getJSONArray("responses").length());
+    }
+
+    public void testSetsCantBeNested() {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.beginRepeatableSet("set");
+        try {
+            builder.beginRepeatableSet("inner");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testOtherFields() throws Exception {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.withSurveyId("survey").withSurveyKey("key").withTime(1000, "UTC")
+                .withSurveyLaunchContext("{\"launch_time\":1}").addPromptResponse("p", "1");
+
+        JSONObject data = write(builder);
+        assertEquals("survey", data.getString("survey_id"));
+        assertEquals("key", data.getString("survey_key"));
+        assertEquals(1000, data.getLong("time"));
+        assertEquals("UTC", data.getString("timezone"));
+        assertEquals(1, data.getJSONObject("survey_launch_context").getLong("launch_time"));
+        assertEquals("unavailable", data.getString("location_status"));
+        assertEquals(1, data.getJSONArray("responses").length());
+    }
+
+    public void testAddAfterWrite() throws Exception {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        builder.withSurveyId("survey").addPromptResponse("p", "1");
+        assertEquals(1, write(builder).getJSONArray("responses").length());
+
+        // The other fields were cut off again, so the array can keep growing
+        builder.addPromptResponse("p", "2");
+        JSONObject data = write(builder);
+        assertEquals("survey", data.getString("survey_id"));
+        JSONArray responses = data.getJSONArray("responses");
+        assertEquals(2, responses.length());
+        assertPrompt(responses.getJSONObject(1), "p", "2");
+    }
+
+    public void testRejectsNull() {
+        ResponseBuilder builder = new ResponseBuilder("urn", "ts");
+        try {
+            builder.addPromptResponse("p", null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            builder.beginRepeatableSet(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private JSONObject write(ResponseBuilder builder) throws Exception {
+        builder.write(mWriter);
+        return new JSONObject(mData);
+    }
+
+    private static void assertPrompt(JSONObject response, String promptId, String value)
+            throws JSONException {
+        assertEquals(promptId, response.getString("prompt_id"));
+        assertEquals(value, response.getString("value"));
+    }
+}